@@ -19,6 +19,7 @@ public class Start {
     static {
         EventBus.register(ServerEvents.ServerStartEvent.class, AsyncTlsHttpServer::onServerStart);
         EventBus.register(ServerEvents.ServerStopEvent.class, AsyncTlsHttpServer::onServerStop);
+        EventBus.register(ServerEvents.ServerRestartEvent.class, AsyncTlsHttpServer::onServerRestart);
     }
 
     static void main(String[] args) throws InterruptedException {
@@ -0,0 +1,131 @@
+package common;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Decides at accept time whether a connection is served, before anything is read from it.
+ * <p>
+ * Three limits apply: the number of live connections, the number of live connections per remote
+ * address, and the rate of new connections as a token bucket. Per-address counts are kept in a
+ * fixed array of stripes indexed by the address's hash rather than in a map, so the bookkeeping
+ * never grows; addresses sharing a stripe share its limit, which errs on the side of rejecting.
+ * <p>
+ * A rejected connection is answered from a pre-encoded response and closed, so shedding load
+ * costs one small write. Every admitted connection must be {@link #release released} exactly once.
+ */
+public final class AdmissionControl {
+
+    private static final int ADDRESS_STRIPES = 4096;
+
+    public record Limits(int maxConnections, int maxConnectionsPerAddress, int acceptsPerSecond, int acceptBurst) {
+
+        public Limits {
+            if (maxConnections < 1 || maxConnectionsPerAddress < 1) {
+                throw new IllegalArgumentException("connection limits must be >= 1");
+            }
+            if (acceptsPerSecond < 1 || acceptBurst < 1) {
+                throw new IllegalArgumentException("accept rate and burst must be >= 1");
+            }
+        }
+
+        public static Limits defaults() {
+            return new Limits(10_000, 1_000, 5_000, 10_000);
+        }
+    }
+
+    /** Why a connection was turned away, with the response it gets. */
+    public enum Rejection {
+        CONNECTION_LIMIT(503, "Service Unavailable"),
+        ADDRESS_LIMIT(429, "Too Many Requests"),
+        RATE_LIMIT(503, "Service Unavailable");
+
+        private final ByteBuffer response;
+
+        Rejection(int code, String reason) {
+            byte[] bytes = ("HTTP/1.1 " + code + " " + reason + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Retry-After: 1\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            this.response = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+        }
+
+        /** The pre-encoded response, as a fresh view that can be written on its own. */
+        public ByteBuffer response() {
+            return response.duplicate();
+        }
+    }
+
+    private final Limits limits;
+    private final AtomicInteger liveConnections = new AtomicInteger();
+    private final AtomicIntegerArray addressConnections = new AtomicIntegerArray(ADDRESS_STRIPES);
+
+    // token bucket for new connections, guarded by this
+    private final long nanosPerToken;
+    private long tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    public AdmissionControl(Limits limits) {
+        this.limits = limits;
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / limits.acceptsPerSecond());
+        this.tokens = limits.acceptBurst();
+    }
+
+    /**
+     * Admits a connection from the given address, or returns why it is rejected.
+     * Null means admitted; the connection then has to be released when it closes.
+     */
+    public Rejection tryAdmit(InetAddress address) {
+        if (!takeToken()) {
+            return Rejection.RATE_LIMIT;
+        }
+        if (liveConnections.incrementAndGet() > limits.maxConnections()) {
+            liveConnections.decrementAndGet();
+            return Rejection.CONNECTION_LIMIT;
+        }
+        int stripe = stripe(address);
+        if (addressConnections.incrementAndGet(stripe) > limits.maxConnectionsPerAddress()) {
+            addressConnections.decrementAndGet(stripe);
+            liveConnections.decrementAndGet();
+            return Rejection.ADDRESS_LIMIT;
+        }
+        return null;
+    }
+
+    /** Gives back what an admitted connection from this address held. */
+    public void release(InetAddress address) {
+        addressConnections.decrementAndGet(stripe(address));
+        liveConnections.decrementAndGet();
+    }
+
+    public int liveConnections() {
+        return liveConnections.get();
+    }
+
+    private synchronized boolean takeToken() {
+        long now = System.nanoTime();
+        long refill = (now - lastRefillNanos) / nanosPerToken;
+        if (refill > 0) {
+            tokens = Math.min(limits.acceptBurst(), tokens + refill);
+            lastRefillNanos += refill * nanosPerToken;
+        }
+        if (tokens == 0) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private static int stripe(InetAddress address) {
+        if (address == null) {
+            return 0;
+        }
+        // spread the low-entropy hash of IPv4 addresses over all stripes
+        int hash = address.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (ADDRESS_STRIPES - 1);
+    }
+}
@@ -0,0 +1,50 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A direct buffer borrowed from a {@link BufferPool}. Keep the lease for as long as the buffer is
+ * in use and {@link #release()} it exactly once afterwards; the buffer must not be touched after
+ * that, it is handed to the next borrower.
+ */
+public final class BufferLease {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    // index of the size class, -1 if the buffer was too large to be pooled
+    private final int sizeClass;
+    // only for sampled leases, see BufferPool
+    private final BufferPool.LeakRecord leakRecord;
+    private boolean released;
+
+    BufferLease(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.leakRecord = pool.trackLeaks(this);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /** Gives the buffer back to the pool. */
+    public void release() {
+        if (released) {
+            throw new IllegalStateException("Buffer lease released twice");
+        }
+        released = true;
+        if (leakRecord != null) {
+            leakRecord.released();
+        }
+        pool.recycle(buffer, sizeClass);
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+}
@@ -0,0 +1,254 @@
+package common;
+
+import logger.Logger;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers in power-of-two size classes, shared by both server stacks.
+ * <p>
+ * Buffers are carved out of larger slabs, so the pool does few native allocations and none at all
+ * once warmed up. Every platform thread keeps a small stack per size class in front of the shared
+ * queues, which makes the common lease-and-release on one event loop thread contention-free;
+ * virtual threads go to the shared queues directly. Requests above the largest class get a plain
+ * direct buffer that is not pooled.
+ * <p>
+ * A sample of the leases is watched for leaks: if one becomes unreachable without being
+ * released, the stack trace of where it was acquired is logged. Set the system property
+ * {@code common.bufferPool.leakSampling} to 1 to track every lease, 0 to track none.
+ */
+public final class BufferPool {
+
+    private static final Logger LOGGER = new Logger(BufferPool.class.getName());
+
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int MAX_CLASS_SHIFT = 16;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int SLAB_BYTES = 256 * 1024;
+    private static final int THREAD_CACHE_BYTES = 512 * 1024;
+    private static final int THREAD_CACHE_MAX_BUFFERS = 64;
+
+    public static final int MIN_POOLED_SIZE = 1 << MIN_CLASS_SHIFT;
+    public static final int MAX_POOLED_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private static final Cleaner LEAK_CLEANER = Cleaner.create();
+    private static final BufferPool SHARED = new BufferPool(64L * 1024 * 1024,
+            Integer.getInteger("common.bufferPool.leakSampling", 256));
+
+    /** Statistics of one size class, or of unpooled leases if {@code size} is 0. */
+    public record ClassStats(int size, long leased, long acquired, long threadCacheHits, long sharedHits,
+                             long allocated) {
+    }
+
+    /** A snapshot of the pool's counters. */
+    public record Stats(ClassStats[] classes, ClassStats unpooled, long slabBytes, long leaks) {
+
+        public long leasedBuffers() {
+            long leased = unpooled.leased();
+            for (ClassStats stats : classes) {
+                leased += stats.leased();
+            }
+            return leased;
+        }
+    }
+
+    /** Outcome of one tracked lease, kept apart from the lease so it can outlive it. */
+    static final class LeakRecord implements Runnable {
+
+        private final BufferPool pool;
+        private final Throwable acquiredAt;
+        private final int capacity;
+        private Cleaner.Cleanable cleanable;
+        private volatile boolean released;
+
+        private LeakRecord(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.acquiredAt = new Throwable("Buffer lease acquired here");
+        }
+
+        void released() {
+            released = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                pool.leaks.incrementAndGet();
+                LOGGER.error("Buffer lease of " + capacity + " bytes was never released", acquiredAt);
+            }
+        }
+    }
+
+    private static final class ThreadCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[CLASS_COUNT][];
+        private final int[] sizes = new int[CLASS_COUNT];
+
+        private ThreadCache() {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                stacks[i] = new ByteBuffer[Math.min(THREAD_CACHE_MAX_BUFFERS, THREAD_CACHE_BYTES >> (MIN_CLASS_SHIFT + i))];
+            }
+        }
+    }
+
+    private final ArrayBlockingQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+    private final int leakSampling;
+
+    // per size class, the last slot counts unpooled leases; adders keep the hot path free of contention
+    private final LongAdder[] leased = adders();
+    private final LongAdder[] acquired = adders();
+    private final LongAdder[] threadCacheHits = adders();
+    private final LongAdder[] sharedHits = adders();
+    private final LongAdder[] allocated = adders();
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param maxSharedBytesPerClass how much each size class keeps in its shared queue; buffers
+     *                               released beyond that are left to the garbage collector
+     * @param leakSampling           track one in this many leases for leaks, 0 to disable
+     */
+    public BufferPool(long maxSharedBytesPerClass, int leakSampling) {
+        this.leakSampling = leakSampling;
+        @SuppressWarnings("unchecked")
+        ArrayBlockingQueue<ByteBuffer>[] queues = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[CLASS_COUNT];
+        this.shared = queues;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            int size = 1 << (MIN_CLASS_SHIFT + i);
+            shared[i] = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSharedBytesPerClass / size)));
+        }
+    }
+
+    /** The pool used by the servers. */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /** Leases a cleared buffer with at least the given capacity. */
+    public BufferLease acquire(int minCapacity) {
+        if (minCapacity > MAX_POOLED_SIZE) {
+            allocated[CLASS_COUNT].increment();
+            acquired[CLASS_COUNT].increment();
+            leased[CLASS_COUNT].increment();
+            return new BufferLease(this, ByteBuffer.allocateDirect(minCapacity), -1);
+        }
+
+        int sizeClass = sizeClass(minCapacity);
+        acquired[sizeClass].increment();
+        leased[sizeClass].increment();
+
+        ByteBuffer buffer = null;
+        ThreadCache cache = threadCache();
+        if (cache != null && cache.sizes[sizeClass] > 0) {
+            int top = --cache.sizes[sizeClass];
+            buffer = cache.stacks[sizeClass][top];
+            cache.stacks[sizeClass][top] = null;
+            threadCacheHits[sizeClass].increment();
+        }
+        if (buffer == null) {
+            buffer = shared[sizeClass].poll();
+            if (buffer != null) {
+                sharedHits[sizeClass].increment();
+            } else {
+                buffer = allocateFromSlab(sizeClass);
+            }
+        }
+        return new BufferLease(this, buffer.clear(), sizeClass);
+    }
+
+    /**
+     * Moves what was written to a lease's buffer (everything before its position) into a new lease
+     * of at least the given capacity, and releases the old one.
+     */
+    public BufferLease grow(BufferLease lease, int minCapacity) {
+        BufferLease bigger = acquire(minCapacity);
+        ByteBuffer old = lease.buffer();
+        old.flip();
+        bigger.buffer().put(old);
+        lease.release();
+        return bigger;
+    }
+
+    public Stats stats() {
+        ClassStats[] classes = new ClassStats[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            classes[i] = classStats(i, 1 << (MIN_CLASS_SHIFT + i));
+        }
+        return new Stats(classes, classStats(CLASS_COUNT, 0), slabBytes.get(), leaks.get());
+    }
+
+    void recycle(ByteBuffer buffer, int sizeClass) {
+        if (sizeClass < 0) {
+            leased[CLASS_COUNT].decrement();
+            return;
+        }
+        leased[sizeClass].decrement();
+
+        ThreadCache cache = threadCache();
+        if (cache != null && cache.sizes[sizeClass] < cache.stacks[sizeClass].length) {
+            cache.stacks[sizeClass][cache.sizes[sizeClass]++] = buffer;
+            return;
+        }
+        // dropped if the shared queue is full
+        shared[sizeClass].offer(buffer);
+    }
+
+    LeakRecord trackLeaks(BufferLease lease) {
+        if (leakSampling <= 0 || leakSampling > 1 && ThreadLocalRandom.current().nextInt(leakSampling) != 0) {
+            return null;
+        }
+        LeakRecord record = new LeakRecord(this, lease.capacity());
+        record.cleanable = LEAK_CLEANER.register(lease, record);
+        return record;
+    }
+
+    // a slab is cut into buffers of one class: the first is returned, the rest go to the shared queue
+    private ByteBuffer allocateFromSlab(int sizeClass) {
+        int size = 1 << (MIN_CLASS_SHIFT + sizeClass);
+        int slabSize = Math.max(size, SLAB_BYTES);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        slabBytes.addAndGet(slabSize);
+        allocated[sizeClass].increment();
+
+        ByteBuffer first = slab.slice(0, size);
+        for (int offset = size; offset + size <= slabSize; offset += size) {
+            if (!shared[sizeClass].offer(slab.slice(offset, size))) {
+                break;
+            }
+        }
+        return first;
+    }
+
+    private ThreadCache threadCache() {
+        // a cache per virtual thread would rarely be hit and never be reclaimed in time
+        return Thread.currentThread().isVirtual() ? null : threadCaches.get();
+    }
+
+    private ClassStats classStats(int slot, int size) {
+        return new ClassStats(size, leased[slot].sum(), acquired[slot].sum(), threadCacheHits[slot].sum(),
+                sharedHits[slot].sum(), allocated[slot].sum());
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[CLASS_COUNT + 1];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        // ceil(log2(capacity)) - MIN_CLASS_SHIFT
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS_SHIFT;
+    }
+}
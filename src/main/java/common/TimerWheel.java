@@ -0,0 +1,210 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical hashed timing wheel for connection deadlines.
+ * <p>
+ * Time advances in ticks of a fixed length. The first level has a slot per tick, every further
+ * level a slot per full turn of the level below; a timeout sits in the lowest level that reaches
+ * its deadline and is moved down a level whenever the wheel turns past its slot. Scheduling and
+ * cancelling are O(1), and only the timeouts that are due or cascading are touched on a tick, no
+ * matter how many are pending. Timeouts fire up to one tick late, never early.
+ * <p>
+ * Thread-safe. Whoever calls {@link #advance()} runs the expired tasks, outside the wheel's lock;
+ * tasks should be short and must not block.
+ */
+public final class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // deadlines further out are parked in the top level and re-placed as it turns
+    private static final long MAX_SPAN_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    /** A scheduled task. */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        // slot list the timeout is linked into, guarded by the wheel's lock
+        private Slot slot;
+        // null once the timeout fired or was cancelled
+        private volatile TimerWheel wheel;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /** Prevents the task from running. Returns false if it already ran or was cancelled. */
+        public boolean cancel() {
+            TimerWheel owner = wheel;
+            if (owner == null) {
+                return false;
+            }
+            synchronized (owner) {
+                if (slot == null) {
+                    return false;
+                }
+                slot.unlink(this);
+                owner.size--;
+                wheel = null;
+                return true;
+            }
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+    }
+
+    private static final class Slot {
+        private Timeout head;
+
+        void link(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void unlink(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.slot = null;
+        }
+
+        // empties the slot, returning its former contents as a chain linked through next
+        Timeout drain() {
+            Timeout first = head;
+            head = null;
+            return first;
+        }
+    }
+
+    private final long tickNanos;
+    private final long originNanos;
+    private final Slot[][] levels = new Slot[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long tickMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be >= 1");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.originNanos = System.nanoTime();
+        for (Slot[] level : levels) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Slot();
+            }
+        }
+    }
+
+    public long tickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /** Runs the task once the delay has passed, on the thread that advances the wheel. */
+    public synchronized Timeout schedule(long delayMillis, Runnable task) {
+        long deadlineNanos = System.nanoTime() - originNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        // rounded up, so a timeout never fires before its delay
+        long deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /** Number of pending timeouts. */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Moves the wheel up to the current time and runs every task that has become due. */
+    public void advance() {
+        List<Runnable> expired = null;
+        synchronized (this) {
+            long targetTick = (System.nanoTime() - originNanos) / tickNanos;
+            if (size == 0) {
+                // nothing to cascade or expire on the way
+                currentTick = Math.max(currentTick, targetTick);
+                return;
+            }
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade(1);
+                Timeout timeout = levels[0][(int) (currentTick & SLOT_MASK)].drain();
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = null;
+                    timeout.next = null;
+                    timeout.slot = null;
+                    if (timeout.deadlineTick <= currentTick) {
+                        timeout.wheel = null;
+                        size--;
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(timeout.task);
+                    } else {
+                        place(timeout);
+                    }
+                    timeout = next;
+                }
+                if (size == 0) {
+                    currentTick = targetTick;
+                }
+            }
+        }
+        if (expired != null) {
+            for (Runnable task : expired) {
+                task.run();
+            }
+        }
+    }
+
+    // when a level completes a turn, the next slot of the level above is spread over the levels below
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+        Timeout timeout = levels[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)].drain();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long ticks = Math.max(0, timeout.deadlineTick - currentTick);
+        long slotTick = ticks < MAX_SPAN_TICKS ? Math.max(timeout.deadlineTick, currentTick) : currentTick + MAX_SPAN_TICKS - 1;
+        ticks = slotTick - currentTick;
+
+        int level = 0;
+        while (level < LEVELS - 1 && ticks >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        levels[level][(int) ((slotTick >>> (SLOT_BITS * level)) & SLOT_MASK)].link(timeout);
+    }
+}
@@ -0,0 +1,78 @@
+package hardware;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Best-effort CPU pinning for platform threads. Java has no affinity API, so on Linux each thread
+ * looks up its kernel thread id through /proc/thread-self, and whoever does the pinning hands the ids
+ * to taskset. Elsewhere, or without taskset, nothing happens.
+ */
+public final class CpuAffinity {
+
+    // taskset returns right away; one that doesn't is killed rather than waited for
+    private static final long TASKSET_TIMEOUT_MILLIS = 1_000L;
+
+    private CpuAffinity() {
+    }
+
+    /** The calling thread's kernel thread id, or -1 if there is none to be had. */
+    public static long currentThreadId() {
+        if (Thread.currentThread().isVirtual()) {
+            return -1;
+        }
+        try {
+            // <pid>/task/<tid>
+            Path self = Files.readSymbolicLink(Path.of("/proc/thread-self"));
+            return Long.parseLong(self.getFileName().toString());
+        } catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Restricts the threads with the given kernel ids to the given CPUs; false if that wasn't possible
+     * for all of them. Meant to be called once for a set of threads, not by each of them.
+     */
+    public static boolean pinThreads(long[] threadIds, int[] cpus) {
+        if (cpus == null || cpus.length == 0) {
+            return false;
+        }
+        String list = Arrays.stream(cpus).mapToObj(Integer::toString).collect(Collectors.joining(","));
+        boolean pinned = true;
+        for (long tid : threadIds) {
+            if (tid < 0 || !taskset(list, tid)) {
+                pinned = false;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return pinned;
+    }
+
+    private static boolean taskset(String cpus, long tid) {
+        Process taskset;
+        try {
+            taskset = new ProcessBuilder("taskset", "-pc", cpus, Long.toString(tid))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+        try {
+            if (taskset.waitFor(TASKSET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return taskset.exitValue() == 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        taskset.destroyForcibly();
+        return false;
+    }
+}
@@ -0,0 +1,260 @@
+package server;
+
+import common.AdmissionControl;
+import common.TimerWheel;
+import logger.Logger;
+import server.fs.StaticContentCache;
+import server.handler.HttpRequestHandler;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker reactor: owns one selector and serves read/write for the connections handed over by the acceptor.
+ * Every channel registered here is only ever touched from this loop's thread.
+ * Connection deadlines live on the loop's own timer wheel, which is advanced on every tick.
+ */
+final class EventLoop implements Runnable {
+
+    private static final Logger LOGGER = new Logger(EventLoop.class.getName());
+
+    private static final long SHUTDOWN_POLL_MILLIS = 100L;
+    private static final long TIMER_TICK_MILLIS = 250L;
+
+    private final String name;
+    private final StaticContentCache contentCache;
+    private final HttpServerConfig config;
+    private final AdmissionControl admission;
+    private final long shutdownTimeoutMillis;
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionsNum = new AtomicInteger();
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK_MILLIS);
+
+    private volatile long shutdownSignalTime = -1L;
+    private volatile boolean stopped;
+
+    EventLoop(String name, StaticContentCache contentCache, HttpServerConfig config,
+              AdmissionControl admission, long shutdownTimeoutMillis) throws IOException {
+        this.name = name;
+        this.contentCache = contentCache;
+        this.config = config;
+        this.admission = admission;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.selector = Selector.open();
+    }
+
+    String name() {
+        return name;
+    }
+
+    /** Number of connections currently served by this loop; read by the acceptor for balancing. */
+    int connections() {
+        return connectionsNum.get();
+    }
+
+    /** Hands an accepted channel over to this loop. Safe to call from any thread. */
+    void handOver(SocketChannel channel) {
+        connectionsNum.incrementAndGet();
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    void signalShutdown(long signalTime) {
+        shutdownSignalTime = signalTime;
+        selector.wakeup();
+    }
+
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            startLoop();
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error occurred. Stopping worker loop " + name, e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void startLoop() throws IOException {
+        boolean needToStop = false;
+        while (!needToStop && !stopped) {
+            boolean shutdownMode = shutdownSignalTime > 0;
+            if (shutdownMode) {
+                needToStop = System.currentTimeMillis() - shutdownSignalTime >= shutdownTimeoutMillis;
+            }
+            handleLoopTick(shutdownMode);
+        }
+    }
+
+    private void handleLoopTick(boolean inShutdown) throws IOException {
+        selector.select(inShutdown ? SHUTDOWN_POLL_MILLIS : TIMER_TICK_MILLIS);
+        registerPendingChannels(inShutdown);
+        timers.advance();
+
+        Set<SelectionKey> keys = selector.selectedKeys();
+        Iterator<SelectionKey> keyIterator = keys.iterator();
+        while (keyIterator.hasNext()) {
+            SelectionKey key = keyIterator.next();
+            keyIterator.remove();
+            try {
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isReadable()) {
+                    if (inShutdown) {
+                        continue;
+                    }
+                    read(key);
+                } else if (key.isWritable()) {
+                    write(key);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Closing channel: error while handling selection key. Channel: " + key.channel(), e);
+                closeChannelSilently(key);
+            }
+        }
+    }
+
+    private void registerPendingChannels(boolean inShutdown) {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            if (inShutdown) {
+                closeUnregistered(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                HttpRequestHandler handler = new HttpRequestHandler(contentCache, config.keepAliveMaxRequests(),
+                        config.keepAliveIdleTimeoutMillis(), config.requestHeadTimeoutMillis(),
+                        config.responseWriteTimeoutMillis());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+                handler.watchDeadline(timers, () -> closeIfTimedOut(key));
+                LOGGER.info("Got new connection handler for channel: " + channel + " on " + name
+                        + ", active connections: " + admission.liveConnections());
+            } catch (IOException e) {
+                LOGGER.warn("Could not register channel: " + channel + " on " + name, e);
+                closeUnregistered(channel);
+            }
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
+
+        boolean open = handler.read(clientChannel);
+        if (handler.hasPendingRequest()) {
+            // switch to write mode, pipelined requests are answered one after another
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (!open) {
+            closeChannelSilently(key);
+            return;
+        }
+        handler.updateDeadline();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
+        if (handler == null) {
+            throw new IOException("Handler is missing for the channel: " + key.channel());
+        }
+
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        handler.write(clientChannel);
+
+        if (!handler.hasNothingToWrite()) {
+            // keep writing
+            key.interestOps(SelectionKey.OP_WRITE);
+            handler.updateDeadline();
+            return;
+        }
+
+        if (!handler.finishExchange() || shutdownSignalTime > 0) {
+            closeChannelSilently(key);
+            return;
+        }
+        if (handler.hasPendingRequest()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            // keep-alive: wait for the next request
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        handler.updateDeadline();
+    }
+
+    // runs from the timer wheel on this loop's thread
+    private void closeIfTimedOut(SelectionKey key) {
+        if (key.isValid() && key.attachment() instanceof HttpRequestHandler handler && handler.isDeadlineExpired()) {
+            LOGGER.info("Closing timed out connection: " + key.channel());
+            closeChannelSilently(key);
+        }
+    }
+
+    private void closeChannelSilently(SelectionKey key) {
+        if (!key.isValid()) {
+            // already closed during this tick
+            return;
+        }
+        connectionsNum.decrementAndGet();
+        SocketChannel channel = (SocketChannel) key.channel();
+        admission.release(channel.socket().getInetAddress());
+        int active = admission.liveConnections();
+
+        key.cancel();
+        LOGGER.info("Closing connection for channel: " + channel + " on " + name + ", active connections: " + active);
+
+        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
+        if (handler != null) {
+            handler.releaseSilently();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error during closing channel: " + channel, e);
+        }
+    }
+
+    private void closeUnregistered(SocketChannel channel) {
+        connectionsNum.decrementAndGet();
+        admission.release(channel.socket().getInetAddress());
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error during closing channel: " + channel, e);
+        }
+    }
+
+    private void closeAll() {
+        SocketChannel pending;
+        while ((pending = pendingChannels.poll()) != null) {
+            closeUnregistered(pending);
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.channel() instanceof SocketChannel) {
+                closeChannelSilently(key);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error during closing selector of " + name + ". Ignoring", e);
+        }
+        LOGGER.info("Worker loop " + name + " stopped");
+    }
+}
@@ -1,7 +1,9 @@
 package server;
 
+import common.AdmissionControl;
 import logger.Logger;
-import server.handler.HttpRequestHandler;
+import server.fs.StaticContentCache;
+import server.response.HttpResponse;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -10,26 +12,39 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 public final class HttpServer implements Runnable {
 
     public static final int PORT = 9999;
     private final long SHUTDOWN_TIMEOUT_MILLIS = 10000L;
+    private static final long SHUTDOWN_POLL_MILLIS = 100L;
 
     private static final Logger LOGGER = new Logger(HttpServer.class.getName());
 
-    private final String staticContentFolder;
+    private final HttpServerConfig config;
+    private final StaticContentCache contentCache;
 
     private ServerSocketChannel serverChannel;
     private Selector selector;
 
-    private int connectionsNum;
+    private final List<EventLoop> workers = new ArrayList<>();
+    private final AdmissionControl admission;
+    private int nextWorker;
     private volatile long shutdownSignalTime = -1L;
 
     public HttpServer(String staticContentFolder) {
-        this.staticContentFolder = staticContentFolder;
+        this(staticContentFolder, HttpServerConfig.defaults());
+    }
+
+    public HttpServer(String staticContentFolder, HttpServerConfig config) {
+        this.config = config;
+        this.admission = new AdmissionControl(config.admissionLimits());
+        this.contentCache = new StaticContentCache(staticContentFolder, config.staticCacheMaxBytes(),
+                config.staticCacheMaxEntryBytes(), HttpResponse::renderFileHeaders);
     }
 
     @Override
@@ -45,6 +60,8 @@ public final class HttpServer implements Runnable {
     }
 
     private void init() throws IOException {
+        startWorkers();
+
         selector = Selector.open();
         serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
@@ -59,6 +76,10 @@ public final class HttpServer implements Runnable {
                     LOGGER.info("Got shutdown signal. Switching to shutdown mode");
                     // can't use Thread#interrupt here because this affects Channel#write
                     HttpServer.this.shutdownSignalTime = System.currentTimeMillis();
+                    for (EventLoop worker : workers) {
+                        worker.signalShutdown(HttpServer.this.shutdownSignalTime);
+                    }
+                    selector.wakeup();
                     Thread.sleep(SHUTDOWN_TIMEOUT_MILLIS);
                 } catch (Exception e) {
                     LOGGER.warn("Error during shutdown. Forced shutdown", e);
@@ -68,14 +89,30 @@ public final class HttpServer implements Runnable {
             }
         });
 
-        LOGGER.info("Server is now listening on port: " + PORT);
+        LOGGER.info("Server is now listening on port: " + PORT + " with " + workers.size() + " worker loops");
+    }
+
+    private void startWorkers() throws IOException {
+        for (int i = 0; i < config.workers(); i++) {
+            EventLoop worker = new EventLoop("http-worker-" + i, contentCache, config, admission,
+                    SHUTDOWN_TIMEOUT_MILLIS);
+            workers.add(worker);
+            new Thread(worker, worker.name()).start();
+        }
     }
 
     private void stop() {
+        LOGGER.info("Stopping server");
+        for (EventLoop worker : workers) {
+            worker.stop();
+        }
         try {
-            LOGGER.info("Stopping server");
-            selector.close();
-            serverChannel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
         } catch (IOException e) {
             LOGGER.warn("Error during stopping server. Ignoring", e);
         }
@@ -93,101 +130,73 @@ public final class HttpServer implements Runnable {
     }
 
     private void handleLoopTick(boolean inShutdown) throws IOException {
-        selector.select();
+        if (inShutdown) {
+            selector.select(SHUTDOWN_POLL_MILLIS);
+        } else {
+            selector.select();
+        }
         Set<SelectionKey> keys = selector.selectedKeys();
 
         Iterator<SelectionKey> keyIterator = keys.iterator();
         while (keyIterator.hasNext()) {
             SelectionKey key = keyIterator.next();
             keyIterator.remove();
+            if (!key.isValid() || !key.isAcceptable() || inShutdown) {
+                continue;
+            }
             try {
-                if (!key.isValid()) {
-                    continue;
-                }
-
-                if (key.isAcceptable()) {
-                    if (inShutdown) {
-                        continue;
-                    }
-                    accept();
-                } else if (key.isReadable()) {
-                    if (inShutdown) {
-                        continue;
-                    }
-                    read(key);
-                } else if (key.isWritable()) {
-                    write(key);
-                }
-            } catch (Exception e) {
-                LOGGER.error("Closing channel: error while handling selection key. Channel: " + key.channel(), e);
-                closeChannelSilently(key);
+                accept();
+            } catch (IOException e) {
+                LOGGER.error("Error while accepting connections", e);
             }
         }
     }
 
     private void accept() throws IOException {
-        SocketChannel clientChannel = serverChannel.accept();
-        if (clientChannel == null) {
-            LOGGER.warn("No connection is available. Skipping selection key");
-            return;
-        }
-
-        clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
-    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-
-        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
-        if (handler == null) {
-            connectionsNum++;
-            LOGGER.info("Got new connection handler for channel: " + clientChannel
-                    + ", connection #: " + connectionsNum);
-            handler = new HttpRequestHandler(staticContentFolder, connectionsNum);
-            key.attach(handler);
-            return;
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            AdmissionControl.Rejection rejection = admission.tryAdmit(clientChannel.socket().getInetAddress());
+            if (rejection != null) {
+                reject(clientChannel, rejection);
+                continue;
+            }
+            nextWorker().handOver(clientChannel);
         }
-
-        handler.read(clientChannel);
-
-        // switch to write mode
-        key.interestOps(SelectionKey.OP_WRITE);
     }
 
-    private void write(SelectionKey key) throws IOException {
-        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
-        if (handler == null) {
-            throw new IOException("Handler is missing for the channel: " + key.channel());
+    // one non-blocking write of the pre-encoded response into the fresh socket buffer, no parsing, no worker
+    private void reject(SocketChannel channel, AdmissionControl.Rejection rejection) {
+        LOGGER.warn("Rejecting connection from " + channel.socket().getInetAddress() + ": " + rejection);
+        try {
+            channel.configureBlocking(false);
+            channel.write(rejection.response());
+        } catch (IOException e) {
+            LOGGER.warn("Could not answer rejected connection: " + channel, e);
         }
-
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        handler.write(clientChannel);
-
-        if (handler.hasNothingToWrite()) {
-            closeChannelSilently(key);
-        } else {
-            // keep writing
-            key.interestOps(SelectionKey.OP_WRITE);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error during closing channel: " + channel, e);
         }
     }
 
-    private void closeChannelSilently(SelectionKey key) {
-        connectionsNum--;
-
-        SocketChannel channel = (SocketChannel) key.channel();
-        key.cancel();
-        LOGGER.info("Closing connection for channel: " + channel + ", active connections: " + connectionsNum);
-
-        HttpRequestHandler handler = (HttpRequestHandler) key.attachment();
-        if (handler != null) {
-            handler.releaseSilently();
+    private EventLoop nextWorker() {
+        if (config.balancing() == HttpServerConfig.WorkerBalancing.ROUND_ROBIN) {
+            EventLoop worker = workers.get(nextWorker);
+            nextWorker = (nextWorker + 1) % workers.size();
+            return worker;
         }
 
-        try {
-            channel.close();
-        } catch (IOException e) {
-            LOGGER.warn("Error during closing channel: " + channel, e);
+        // least loaded; start the scan at a rotating index so ties are spread evenly
+        int size = workers.size();
+        EventLoop best = null;
+        for (int i = 0; i < size; i++) {
+            EventLoop candidate = workers.get((nextWorker + i) % size);
+            if (best == null || candidate.connections() < best.connections()) {
+                best = candidate;
+            }
         }
+        nextWorker = (nextWorker + 1) % size;
+        return best;
     }
-}
\ No newline at end of file
+}
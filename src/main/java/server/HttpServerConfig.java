@@ -0,0 +1,60 @@
+package server;
+
+import common.AdmissionControl;
+
+public record HttpServerConfig(
+        int workers,
+        WorkerBalancing balancing,
+        int keepAliveMaxRequests,
+        long keepAliveIdleTimeoutMillis,
+        long requestHeadTimeoutMillis,
+        long responseWriteTimeoutMillis,
+        long staticCacheMaxBytes,
+        long staticCacheMaxEntryBytes,
+        AdmissionControl.Limits admissionLimits
+) {
+
+    public HttpServerConfig {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be >= 1");
+        }
+        if (balancing == null) {
+            balancing = WorkerBalancing.LEAST_LOADED;
+        }
+        if (keepAliveMaxRequests < 1) {
+            throw new IllegalArgumentException("keepAliveMaxRequests must be >= 1");
+        }
+        if (keepAliveIdleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("keepAliveIdleTimeoutMillis must be >= 0");
+        }
+        if (requestHeadTimeoutMillis < 1 || responseWriteTimeoutMillis < 1) {
+            throw new IllegalArgumentException("request head and response write timeouts must be >= 1");
+        }
+        if (staticCacheMaxBytes < 0 || staticCacheMaxEntryBytes < 0) {
+            throw new IllegalArgumentException("static cache limits must be >= 0");
+        }
+        if (admissionLimits == null) {
+            admissionLimits = AdmissionControl.Limits.defaults();
+        }
+    }
+
+    public static HttpServerConfig defaults() {
+        return new HttpServerConfig(
+                Math.max(1, Runtime.getRuntime().availableProcessors()),
+                WorkerBalancing.LEAST_LOADED,
+                100,
+                15_000L,
+                10_000L,
+                30_000L,
+                64L * 1024 * 1024,
+                1024L * 1024,
+                AdmissionControl.Limits.defaults()
+        );
+    }
+
+    /** How the acceptor picks the worker loop for a freshly accepted connection. */
+    public enum WorkerBalancing {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+}
@@ -0,0 +1,73 @@
+package server.fs;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A static file held by {@link StaticContentCache}: the metadata, the header block rendered once
+ * at load time and the body in a read-only direct buffer. An encoded variant also records the
+ * file it was derived from, which is what gets revalidated.
+ */
+public final class CachedFile {
+
+    private final FileMetadata metadata;
+    private final byte[] headerBytes;
+    private final ByteBuffer body;
+    // the file on disk this entry is derived from, with the attributes it had at load time
+    private final Path source;
+    private final long sourceSize;
+    private final long sourceLastModifiedMillis;
+
+    // updated by hits without locking; only used to pick eviction victims
+    volatile long lastAccessNanos;
+    volatile long lastCheckedMillis;
+
+    CachedFile(FileMetadata metadata, byte[] headerBytes, ByteBuffer body, Path source) {
+        this(metadata, headerBytes, body, source, metadata.getSize(), metadata.getLastModifiedMillis());
+    }
+
+    CachedFile(FileMetadata metadata, byte[] headerBytes, ByteBuffer body, Path source,
+               long sourceSize, long sourceLastModifiedMillis) {
+        this.metadata = metadata;
+        this.headerBytes = headerBytes;
+        this.body = body.asReadOnlyBuffer();
+        this.source = source;
+        this.sourceSize = sourceSize;
+        this.sourceLastModifiedMillis = sourceLastModifiedMillis;
+        this.lastAccessNanos = System.nanoTime();
+        this.lastCheckedMillis = System.currentTimeMillis();
+    }
+
+    public FileMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** Pre-rendered header lines, each terminated by CRLF. Must not be modified. */
+    public byte[] getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /** A fresh view of the body; the shared content is never copied. */
+    public ByteBuffer body() {
+        return body.duplicate();
+    }
+
+    Path source() {
+        return source;
+    }
+
+    boolean matchesSource(long size, long lastModifiedMillis) {
+        return size == sourceSize && lastModifiedMillis == sourceLastModifiedMillis;
+    }
+
+    long weight() {
+        return body.capacity() + headerBytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedFile{" +
+                "metadata=" + metadata +
+                '}';
+    }
+}
@@ -0,0 +1,74 @@
+package server.fs;
+
+/** Content codings the static server can deliver. */
+public enum ContentEncoding {
+
+    // only available as precompressed sibling, the JDK has no brotli encoder
+    BR("br", ".br", false),
+    GZIP("gzip", ".gz", true),
+    IDENTITY("identity", "", false);
+
+    private final String token;
+    private final String siblingExtension;
+    private final boolean compressibleOnTheFly;
+
+    ContentEncoding(String token, String siblingExtension, boolean compressibleOnTheFly) {
+        this.token = token;
+        this.siblingExtension = siblingExtension;
+        this.compressibleOnTheFly = compressibleOnTheFly;
+    }
+
+    public String token() {
+        return token;
+    }
+
+    String siblingExtension() {
+        return siblingExtension;
+    }
+
+    boolean isCompressibleOnTheFly() {
+        return compressibleOnTheFly;
+    }
+
+    /** True if the Accept-Encoding header value allows this coding, honouring q=0 and "*". */
+    public boolean isAcceptedBy(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return this == IDENTITY;
+        }
+
+        boolean wildcard = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String coding = entry;
+            boolean rejected = false;
+            int params = entry.indexOf(';');
+            if (params >= 0) {
+                coding = entry.substring(0, params);
+                rejected = isZeroQuality(entry.substring(params + 1));
+            }
+            coding = coding.trim();
+
+            if (coding.equalsIgnoreCase(token)) {
+                // an explicit entry wins over the wildcard
+                return !rejected;
+            }
+            if (coding.equals("*")) {
+                wildcard = !rejected;
+            }
+        }
+        return wildcard || this == IDENTITY;
+    }
+
+    private static boolean isZeroQuality(String params) {
+        for (String param : params.split(";")) {
+            String p = param.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim()) <= 0.0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
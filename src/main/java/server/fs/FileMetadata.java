@@ -4,21 +4,79 @@ public class FileMetadata {
 
     private final long size;
     private final String filePath;
+    private final long lastModifiedMillis;
+    private final String contentType;
+    // null for the unencoded file
+    private final ContentEncoding contentEncoding;
+    // derived lazily; a racy duplicate computation yields the same value
+    private String etag;
 
     public FileMetadata(long size, String filePath) {
+        this(size, filePath, 0L);
+    }
+
+    public FileMetadata(long size, String filePath, long lastModifiedMillis) {
+        this(size, filePath, lastModifiedMillis, null);
+    }
+
+    /**
+     * Metadata of an encoded variant: size and mtime belong to the encoded bytes,
+     * the path (and with it the content type) to the original file.
+     */
+    public FileMetadata(long size, String filePath, long lastModifiedMillis, ContentEncoding contentEncoding) {
         this.size = size;
         this.filePath = filePath;
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.contentType = MimeTypes.forFileName(filePath);
+        this.contentEncoding = contentEncoding;
     }
 
     public long getSize() {
         return size;
     }
 
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public ContentEncoding getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /** True if clients may get a differently encoded variant, i.e. responses need Vary: Accept-Encoding. */
+    public boolean isNegotiable() {
+        return contentEncoding != null || MimeTypes.isCompressible(contentType);
+    }
+
+    /**
+     * Strong entity tag built from modification time and size, the same validator nginx uses.
+     * Computed on first use and kept with the metadata, so cached files pay for it once.
+     */
+    public String getETag() {
+        String value = etag;
+        if (value == null) {
+            value = "\"" + Long.toHexString(lastModifiedMillis) + "-" + Long.toHexString(size)
+                    + (contentEncoding == null ? "" : "-" + contentEncoding.token()) + "\"";
+            etag = value;
+        }
+        return value;
+    }
+
     @Override
     public String toString() {
         return "FileMetadata{" +
                 "size=" + size +
                 ", filePath='" + filePath + '\'' +
+                ", lastModifiedMillis=" + lastModifiedMillis +
+                ", contentEncoding=" + contentEncoding +
                 '}';
     }
-}
\ No newline at end of file
+}
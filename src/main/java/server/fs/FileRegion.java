@@ -0,0 +1,57 @@
+package server.fs;
+
+import server.response.ContentSource;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slice of a file sent with {@link FileChannel#transferTo}, so the kernel moves the bytes
+ * from the page cache to the socket (sendfile) and they never pass through the Java heap.
+ * The region does not own the file channel; whoever opened it closes it.
+ */
+public class FileRegion implements ContentSource {
+
+    private final FileChannel fileChannel;
+    private final long end;
+    private long position;
+
+    public FileRegion(FileChannel fileChannel, long position, long count) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        long remaining = end - position;
+        if (remaining <= 0) {
+            return 0;
+        }
+
+        long written = fileChannel.transferTo(position, remaining, channel);
+        if (written == 0 && position >= fileChannel.size()) {
+            throw new IOException("File was truncated while sending it");
+        }
+        position += written;
+        return written;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return position < end;
+    }
+
+    public long remaining() {
+        return end - position;
+    }
+
+    @Override
+    public String toString() {
+        return "FileRegion{" +
+                "position=" + position +
+                ", end=" + end +
+                '}';
+    }
+}
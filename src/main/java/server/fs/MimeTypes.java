@@ -0,0 +1,55 @@
+package server.fs;
+
+import java.util.Map;
+
+public final class MimeTypes {
+
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+
+    private static final Map<String, String> TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("png", "image/png"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("wasm", "application/wasm")
+    );
+
+    private MimeTypes() {
+    }
+
+    /** True for types that shrink noticeably under gzip; images, fonts and media are compressed already. */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml")
+                || contentType.startsWith("application/wasm")
+                || contentType.startsWith("font/ttf");
+    }
+
+    public static String forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) {
+            return DEFAULT_TYPE;
+        }
+        return TYPES.getOrDefault(fileName.substring(dot + 1).toLowerCase(), DEFAULT_TYPE);
+    }
+}
@@ -0,0 +1,313 @@
+package server.fs;
+
+import logger.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static files kept in direct memory, shared by all worker loops.
+ * <p>
+ * Hits are lock-free: a lookup in a concurrent map plus a timestamp store. Entries are revalidated
+ * against the file's mtime and size at most once per {@link #REVALIDATE_INTERVAL_MILLIS}, so a hot
+ * asset costs no disk I/O at all in between. When the byte budget is exceeded the least recently
+ * used entries are evicted. Files bigger than the per-entry limit are not cached; the caller falls
+ * back to {@link FileRegion}.
+ * <p>
+ * Encoded variants live in the same budget, one map per {@link ContentEncoding}. A precompressed
+ * sibling ({@code styles.css.gz}, {@code styles.css.br}) is preferred; otherwise gzip variants are
+ * compressed once from the cached file. Variants that don't exist are remembered for the same
+ * revalidation interval, so negotiation doesn't stat missing siblings on every request.
+ */
+public final class StaticContentCache {
+
+    private static final Logger LOGGER = new Logger(StaticContentCache.class.getName());
+
+    static final long REVALIDATE_INTERVAL_MILLIS = 1000L;
+    // below this the gzip framing eats most of the savings
+    static final long MIN_COMPRESSIBLE_BYTES = 256;
+
+    private final Path root;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Function<FileMetadata, byte[]> headerRenderer;
+
+    // keyed by the path of the original file, fully populated up front and never modified after
+    private final Map<ContentEncoding, Map<Path, CachedFile>> entries = new EnumMap<>(ContentEncoding.class);
+    // variants found missing, with the time of the check
+    private final Map<ContentEncoding, Map<Path, Long>> missingVariants = new EnumMap<>(ContentEncoding.class);
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public StaticContentCache(String rootFolder, long maxBytes, long maxEntryBytes,
+                              Function<FileMetadata, byte[]> headerRenderer) {
+        this.root = Paths.get(rootFolder).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.headerRenderer = headerRenderer;
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            entries.put(encoding, new ConcurrentHashMap<>());
+            missingVariants.put(encoding, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Maps a request path onto the content folder. Returns null if the normalized path
+     * escapes the folder, e.g. through "..".
+     */
+    public Path resolve(String requestPath) {
+        String relative = requestPath;
+        int query = relative.indexOf('?');
+        if (query >= 0) {
+            relative = relative.substring(0, query);
+        }
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+
+        Path path;
+        try {
+            path = root.resolve(relative).normalize();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return path.startsWith(root) ? path : null;
+    }
+
+    /**
+     * Returns the cached file, loading it on a miss. Returns null if the file is too large to be
+     * cached or caching is disabled; throws if it can't be read at all.
+     */
+    public CachedFile get(Path path) throws IOException {
+        CachedFile cached = lookup(ContentEncoding.IDENTITY, path);
+        if (cached != null) {
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        return load(path);
+    }
+
+    /**
+     * Returns the variant of the file in the given encoding, loading or compressing it on a miss.
+     * Returns null if there is no such variant: no precompressed sibling and the encoding can't be
+     * produced here, the file is too small or too large, or compressing it doesn't pay off.
+     */
+    public CachedFile get(Path path, ContentEncoding encoding) throws IOException {
+        if (encoding == ContentEncoding.IDENTITY) {
+            return get(path);
+        }
+        CachedFile cached = lookup(encoding, path);
+        if (cached != null) {
+            return cached;
+        }
+
+        Map<Path, Long> missing = missingVariants.get(encoding);
+        Long checkedMillis = missing.get(path);
+        long now = System.currentTimeMillis();
+        if (checkedMillis != null && now - checkedMillis < REVALIDATE_INTERVAL_MILLIS) {
+            return null;
+        }
+
+        misses.incrementAndGet();
+        CachedFile variant = loadVariant(path, encoding);
+        if (variant == null) {
+            missing.put(path, now);
+        } else {
+            missing.remove(path);
+        }
+        return variant;
+    }
+
+    /** Drops the file and all of its encoded variants. */
+    public void invalidate(Path path) {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            CachedFile cached = entries.get(encoding).get(path);
+            if (cached != null) {
+                invalidate(encoding, path, cached);
+            }
+            missingVariants.get(encoding).remove(path);
+        }
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    private CachedFile lookup(ContentEncoding encoding, Path path) {
+        CachedFile cached = entries.get(encoding).get(path);
+        if (cached == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - cached.lastCheckedMillis < REVALIDATE_INTERVAL_MILLIS || isUnchanged(cached, now)) {
+            hits.incrementAndGet();
+            cached.lastAccessNanos = System.nanoTime();
+            return cached;
+        }
+        invalidate(encoding, path, cached);
+        return null;
+    }
+
+    private boolean isUnchanged(CachedFile cached, long now) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(cached.source(), BasicFileAttributes.class);
+            boolean unchanged = cached.matchesSource(attributes.size(), attributes.lastModifiedTime().toMillis());
+            if (unchanged) {
+                cached.lastCheckedMillis = now;
+            }
+            return unchanged;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private CachedFile load(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            throw new IOException("Not a regular file: " + path);
+        }
+        long size = attributes.size();
+        if (size > maxEntryBytes) {
+            return null;
+        }
+
+        ByteBuffer body = readFully(path, size);
+        FileMetadata metadata = new FileMetadata(size, path.toString(), attributes.lastModifiedTime().toMillis());
+        return store(ContentEncoding.IDENTITY, path, new CachedFile(metadata, headerRenderer.apply(metadata), body, path));
+    }
+
+    private CachedFile loadVariant(Path path, ContentEncoding encoding) throws IOException {
+        Path sibling = path.resolveSibling(path.getFileName() + encoding.siblingExtension());
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+
+        if (attributes != null && attributes.isRegularFile()) {
+            long size = attributes.size();
+            if (size > maxEntryBytes) {
+                return null;
+            }
+            ByteBuffer body = readFully(sibling, size);
+            // the content type is the original file's, the validators are the sibling's
+            FileMetadata metadata = new FileMetadata(size, path.toString(),
+                    attributes.lastModifiedTime().toMillis(), encoding);
+            return store(encoding, path, new CachedFile(metadata, headerRenderer.apply(metadata), body, sibling));
+        }
+
+        if (!encoding.isCompressibleOnTheFly()) {
+            return null;
+        }
+        CachedFile original = get(path);
+        if (original == null) {
+            return null;
+        }
+        FileMetadata originalMetadata = original.getMetadata();
+        if (originalMetadata.getSize() < MIN_COMPRESSIBLE_BYTES
+                || !MimeTypes.isCompressible(originalMetadata.getContentType())) {
+            return null;
+        }
+
+        ByteBuffer compressed = gzip(original.body());
+        if (compressed.remaining() >= originalMetadata.getSize()) {
+            return null;
+        }
+        FileMetadata metadata = new FileMetadata(compressed.remaining(), originalMetadata.getFilePath(),
+                originalMetadata.getLastModifiedMillis(), encoding);
+        LOGGER.info("Compressed " + path + " from " + originalMetadata.getSize() + " to "
+                + compressed.remaining() + " bytes");
+        return store(encoding, path, new CachedFile(metadata, headerRenderer.apply(metadata), compressed, path,
+                originalMetadata.getSize(), originalMetadata.getLastModifiedMillis()));
+    }
+
+    private static ByteBuffer readFully(Path path, long size) throws IOException {
+        ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (body.hasRemaining()) {
+                if (channel.read(body) < 0) {
+                    throw new IOException("File was truncated while caching it: " + path);
+                }
+            }
+        }
+        return body.flip();
+    }
+
+    private static ByteBuffer gzip(ByteBuffer source) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(source.remaining() / 3);
+        byte[] chunk = new byte[8192];
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes, chunk.length)) {
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        byte[] compressed = bytes.toByteArray();
+        return ByteBuffer.allocateDirect(compressed.length).put(compressed).flip();
+    }
+
+    private CachedFile store(ContentEncoding encoding, Path path, CachedFile loaded) {
+        CachedFile previous = entries.get(encoding).putIfAbsent(path, loaded);
+        if (previous != null) {
+            // another worker loaded it concurrently
+            return previous;
+        }
+        if (usedBytes.addAndGet(loaded.weight()) > maxBytes) {
+            evict();
+        }
+        return loaded;
+    }
+
+    private void invalidate(ContentEncoding encoding, Path path, CachedFile cached) {
+        if (entries.get(encoding).remove(path, cached)) {
+            usedBytes.addAndGet(-cached.weight());
+        }
+    }
+
+    // inserts are rare compared to hits, so a linear scan for the oldest entry is fine here
+    private synchronized void evict() {
+        while (usedBytes.get() > maxBytes) {
+            ContentEncoding oldestEncoding = null;
+            Map.Entry<Path, CachedFile> oldest = null;
+            for (Map.Entry<ContentEncoding, Map<Path, CachedFile>> variants : entries.entrySet()) {
+                for (Map.Entry<Path, CachedFile> entry : variants.getValue().entrySet()) {
+                    if (oldest == null || entry.getValue().lastAccessNanos - oldest.getValue().lastAccessNanos < 0) {
+                        oldest = entry;
+                        oldestEncoding = variants.getKey();
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            invalidate(oldestEncoding, oldest.getKey(), oldest.getValue());
+            LOGGER.info("Evicted from static content cache: " + oldest.getKey() + " (" + oldestEncoding.token() + ")");
+        }
+    }
+}
@@ -1,188 +1,272 @@
 package server.handler;
 
+import common.TimerWheel;
 import logger.Logger;
-import server.fs.AsyncFileReaderImpl;
+import server.fs.StaticContentCache;
+import server.request.HttpHeaders;
 import server.request.HttpRequest;
 import server.request.HttpRequestParser;
 import server.response.HttpResponse;
 import server.response.HttpResponseWriter;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Objects;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 
+/**
+ * Per-connection handler. Requests are parsed as they arrive, pipelined ones are queued
+ * and answered strictly in order, one {@link HttpStaticRequestHandler} per request.
+ * <p>
+ * Every state of the connection has a deadline: the idle timeout while waiting for a request or
+ * for more body bytes, the head timeout for receiving a complete request head, and the write
+ * timeout for a response to make progress. A timer on the event loop's wheel tracks the current one.
+ */
 public class HttpRequestHandler {
 
     private static final Logger LOGGER = new Logger(HttpRequestHandler.class.getName());
     public static final int SESSION_TIMEOUT_MILLIS = 30 * 1000;
-    private static final long maxConnectionsNum = 10000;
-
-    private HttpRequest request;
-    private HttpResponse response;
 
+    private final HttpRequestParser parser = new HttpRequestParser();
     private final HttpResponseWriter responseWriter = new HttpResponseWriter();
-    private final ReentrantLock writeLock = new ReentrantLock(true);
-    private AsyncFileReaderImpl fileReader;
-    private FileReadHandler fileReadHandler;
+    private final Queue<HttpRequest> pendingRequests = new ArrayDeque<>();
+    private HttpStaticRequestHandler exchange;
+    private boolean closeAfterResponse;
 
-    private final String staticContentFolder;
+    private final StaticContentCache contentCache;
     private final int sessionTimeoutMillis;
-    private final long creationTimeMillis;
-    private final long connectionNum;
+    private final int maxRequests;
+    private final long idleTimeoutMillis;
+    private final long headTimeoutMillis;
+    private final long writeTimeoutMillis;
+
+    private int servedRequests;
+    private long idleSinceMillis;
+    // when the first byte of the request head being received arrived, -1 if there is none
+    private long headStartMillis = -1;
+    // when the response being written last made progress; the write timeout counts from there
+    private long lastWriteMillis;
 
-    public HttpRequestHandler(String staticContentFolder, int connectionNum) {
-        this.staticContentFolder = staticContentFolder;
+    private TimerWheel timers;
+    private Runnable onDeadline;
+    private TimerWheel.Timeout deadlineTimer;
+    private long armedDeadlineMillis;
+
+    public HttpRequestHandler(StaticContentCache contentCache, int maxRequests,
+                              long idleTimeoutMillis, long headTimeoutMillis, long writeTimeoutMillis) {
+        this.contentCache = contentCache;
         this.sessionTimeoutMillis = SESSION_TIMEOUT_MILLIS;
-        this.creationTimeMillis = System.currentTimeMillis();
-        this.connectionNum = connectionNum;
+        this.maxRequests = maxRequests;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.headTimeoutMillis = headTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.idleSinceMillis = System.currentTimeMillis();
     }
 
-    public void read(ReadableByteChannel channel) throws IOException {
-        request = new HttpRequestParser().parse(channel);
-        LOGGER.info("Parsed incoming HTTP request: " + request);
+    /**
+     * Reads what is available and queues every complete request. Request bodies are passed on
+     * as they arrive; a request is only answered once its body has been read completely.
+     * Returns false once the client has closed its side of the connection.
+     */
+    public boolean read(ByteChannel channel) throws IOException {
+        int read = parser.readAvailable(channel);
 
-        response = validateRequestTimeoutAndRateLimit();
-        if (response != null) {
-            LOGGER.warn("Invalid incoming HTTP request: " + request + ", response: " + response);
+        while (true) {
+            if (parser.hasBodyInProgress()) {
+                // the connection isn't idle while a body is streaming in
+                idleSinceMillis = System.currentTimeMillis();
+                if (!parser.readBody()) {
+                    break;
+                }
+                continue;
+            }
+
+            HttpRequest request = parser.nextRequest();
+            if (request == null) {
+                break;
+            }
+            headStartMillis = -1;
+            LOGGER.info("Parsed incoming HTTP request: " + request);
+            // nothing handles uploads, so bodies keep the default consumer, which only counts them
+            if (request.hasBody()) {
+                sendContinueIfExpected(channel, request);
+            }
+            pendingRequests.add(request);
+        }
+
+        if (parser.hasBodyInProgress() || !parser.hasBufferedData()) {
+            headStartMillis = -1;
+        } else if (headStartMillis < 0) {
+            // the head timeout counts from its first byte, trickling in more doesn't extend it
+            headStartMillis = System.currentTimeMillis();
         }
+        return read >= 0;
     }
 
-    private HttpResponse validateRequestTimeoutAndRateLimit() {
-        long time = System.currentTimeMillis();
-        if (time - creationTimeMillis > sessionTimeoutMillis) {
-            return HttpResponse.buildRequestTimeout();
+    /** True if there is a response to write: one in progress, or a request received in full. */
+    public boolean hasPendingRequest() {
+        if (exchange != null) {
+            return true;
         }
-        // check if connection number exceeds the limit
-        if (connectionNum > maxConnectionsNum) {
-            return HttpResponse.buildTooManyRequests();
+        HttpRequest next = pendingRequests.peek();
+        return next != null && (!next.hasBody() || next.body().isComplete());
+    }
+
+    /**
+     * Clients announcing a body with "Expect: 100-continue" wait for an interim response before
+     * sending it. Only sent when no other response is on its way, so it can't interleave with one.
+     */
+    private void sendContinueIfExpected(WritableByteChannel channel, HttpRequest request) throws IOException {
+        if (exchange != null || !pendingRequests.isEmpty() || !"HTTP/1.1".equals(request.version)
+                || !request.getHeaders().containsToken(HttpHeaders.EXPECT, "100-continue")) {
+            return;
+        }
+        ByteBuffer interim = HttpResponse.continueResponse();
+        // a couple of bytes into an empty send buffer; a short write would just make the client wait it out
+        channel.write(interim);
+        if (interim.hasRemaining()) {
+            throw new IOException("Could not send 100 Continue");
         }
-        return null;
     }
 
     public void write(WritableByteChannel channel) throws IOException {
+        if (exchange == null) {
+            startNextExchange();
+        }
+        if (exchange.write(channel) > 0) {
+            lastWriteMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void startNextExchange() {
+        HttpRequest request = pendingRequests.poll();
         if (request == null) {
             throw new IllegalStateException("Request is not initialized");
         }
 
-        if (Objects.equals(request.method, "post") || Objects.equals(request.method, "POST")){
-//            initJsonResponse
-        }
+        exchange = new HttpStaticRequestHandler(contentCache, request, responseWriter);
+        lastWriteMillis = System.currentTimeMillis();
+        servedRequests++;
 
-        initFileResponse();
-        responseWriter.writeHeaders(channel, response);
-        validateSessionTimeout();
-        writePendingContent(channel);
-        scheduleFileForRead();
-    }
+        HttpResponse rejection = validateRequestTimeout();
+        if (rejection != null) {
+            LOGGER.warn("Invalid incoming HTTP request: " + request + ", response: " + rejection);
+            exchange.respondWith(rejection);
+        }
 
-    private void initFileResponse() {
-        // an error response may be already there
-        if (response != null) {
-            return;
+        // static files can't take uploads; the body has been read by now, so the connection stays usable
+        if (rejection == null && "POST".equals(request.method)) {
+            exchange.respondWith(HttpResponse.buildMethodNotAllowed("GET, HEAD"));
         }
 
-        try {
-            String filePath = (staticContentFolder + request.path).replace("/", File.separator);
-            fileReader = new AsyncFileReaderImpl(filePath);
-            fileReadHandler = new FileReadHandler();
-            response = HttpResponse.buildFileResponse(fileReader.getMetadata());
-            LOGGER.info("Started reading file for request: " + request);
-        } catch (IOException e) {
-            LOGGER.warn("Could not read file for request: " + request);
-            response = HttpResponse.buildNotFound("Could not read file");
+        HttpResponse response = exchange.prepareResponse();
+        closeAfterResponse = rejection != null || !request.keepAlive || servedRequests >= maxRequests;
+        if (closeAfterResponse) {
+            response.closeConnection();
+        } else {
+            response.keepAlive(idleTimeoutMillis / 1000, maxRequests - servedRequests);
         }
     }
 
-    private void validateSessionTimeout() {
+    // connection limits are enforced at accept time, see AdmissionControl
+    private HttpResponse validateRequestTimeout() {
         long time = System.currentTimeMillis();
-        if (time - creationTimeMillis > sessionTimeoutMillis) {
-            writeLock.lock();
-
-            try {
-                LOGGER.warn("Session timeout exceeded for request: " + request);
-                response.markAsComplete();
-                // get rid of buffered pending data
-                response.flushPendingContent();
-            } finally {
-                writeLock.unlock();
-            }
+        if (time - idleSinceMillis > sessionTimeoutMillis) {
+            return HttpResponse.buildRequestTimeout();
         }
+        return null;
     }
 
-    private void writePendingContent(WritableByteChannel channel) throws IOException {
-        // write only if there is an opportunity, otherwise - write on next tick
-        boolean responseLocked = writeLock.tryLock();
-        if (responseLocked) {
-            try {
-                responseWriter.writeContent(channel, response);
-            } finally {
-                writeLock.unlock();
-            }
+    public boolean hasNothingToWrite() {
+        if (exchange == null) {
+            return pendingRequests.isEmpty();
         }
+        return exchange.hasNothingToWrite();
     }
 
-    private void scheduleFileForRead() {
-        if (fileReader == null) {
-            return;
+    /**
+     * Completes the current request once its response is fully written.
+     * Returns true if the connection stays open for further requests.
+     */
+    public boolean finishExchange() {
+        if (exchange == null) {
+            return !closeAfterResponse;
         }
-        fileReader.readNextChunk(fileReadHandler);
+
+        boolean reusable = !closeAfterResponse;
+        exchange.releaseSilently();
+        exchange = null;
+        idleSinceMillis = System.currentTimeMillis();
+        return reusable;
     }
 
-    public boolean hasNothingToWrite() {
-        boolean responseLocked = writeLock.tryLock();
-        if (responseLocked) {
-            try {
-                return response.isComplete() && !response.hasPendingContent();
-            } finally {
-                writeLock.unlock();
-            }
+    /**
+     * Starts tracking the connection's deadlines on the given wheel. onExpired runs when the timer
+     * fires and should close the connection if {@link #isDeadlineExpired()} agrees.
+     */
+    public void watchDeadline(TimerWheel timers, Runnable onExpired) {
+        this.timers = timers;
+        this.onDeadline = onExpired;
+        updateDeadline();
+    }
+
+    /**
+     * Re-arms the timer if the deadline of the current state is earlier than the armed one. A later
+     * deadline is only picked up when the timer fires, so progress doesn't cost a timer each time.
+     * Call after every read and write.
+     */
+    public void updateDeadline() {
+        long deadline = deadlineMillis();
+        if (deadlineTimer != null && deadlineTimer.isPending() && armedDeadlineMillis <= deadline) {
+            return;
         }
-        return false;
+        cancelDeadline();
+        armedDeadlineMillis = deadline;
+        deadlineTimer = timers.schedule(deadline - System.currentTimeMillis(), onDeadline);
     }
 
-    public void releaseSilently() {
-        if (fileReader != null) {
-            fileReader.closeSilently();
+    /** True once the deadline of the current state has passed; otherwise re-arms the timer for it. */
+    public boolean isDeadlineExpired() {
+        if (System.currentTimeMillis() >= deadlineMillis()) {
+            return true;
         }
+        updateDeadline();
+        return false;
     }
 
-    private class FileReadHandler implements AsyncFileReaderImpl.ReadHandler {
-        @Override
-        public void onRead(byte[] data) {
-            writeLock.lock();
-            try {
-                if (!response.isComplete()) {
-                    response.addContentChunk(data);
-                }
-            } finally {
-                writeLock.unlock();
-            }
+    private long deadlineMillis() {
+        if (exchange != null) {
+            // a slow download is fine as long as it keeps moving
+            return lastWriteMillis + writeTimeoutMillis;
+        }
+        if (hasPendingRequest()) {
+            // waiting for the socket to become writable
+            return idleSinceMillis + writeTimeoutMillis;
         }
+        if (headStartMillis >= 0) {
+            return headStartMillis + headTimeoutMillis;
+        }
+        // a body that stopped arriving counts as idle too
+        return idleSinceMillis + idleTimeoutMillis;
+    }
 
-        @Override
-        public void onComplete() {
-            LOGGER.info("Finished reading file for request: " + request);
-            writeLock.lock();
-            try {
-                response.markAsComplete();
-            } finally {
-                writeLock.unlock();
-            }
+    private void cancelDeadline() {
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
         }
+    }
 
-        @Override
-        public void onError(Throwable e) {
-            LOGGER.error("Error during reading file for request: " + request, e);
-            writeLock.lock();
-            try {
-                response.markAsComplete();
-            } finally {
-                writeLock.unlock();
-            }
+    /** Releases the connection's file handles and pooled buffers. Called when the connection closes. */
+    public void releaseSilently() {
+        if (exchange != null) {
+            exchange.releaseSilently();
         }
+        parser.release();
+        responseWriter.release();
+        cancelDeadline();
     }
-}
\ No newline at end of file
+}
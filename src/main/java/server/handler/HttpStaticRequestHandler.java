@@ -1,185 +1,270 @@
 package server.handler;
 
 import logger.Logger;
-import server.fs.AsyncFileReaderImpl;
+import server.fs.CachedFile;
+import server.fs.ContentEncoding;
+import server.fs.FileMetadata;
+import server.fs.FileRegion;
+import server.fs.StaticContentCache;
+import server.request.ByteRange;
 import server.request.HttpRequest;
-import server.request.HttpRequestParser;
-import server.request.RawRequestReader;
+import server.response.BufferContent;
+import server.response.HttpDates;
 import server.response.HttpResponse;
 import server.response.HttpResponseWriter;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 
 
+/**
+ * Serves a single request from the static content folder. A keep-alive connection
+ * creates one of these per request, see {@link HttpRequestHandler}.
+ * Files come from the shared {@link StaticContentCache}; those too large for it are streamed with
+ * {@link FileRegion}, i.e. zero-copy from the page cache to the socket.
+ * Conditional requests whose validators still match are answered with a bodiless 304, or 412 for
+ * methods other than GET and HEAD, Range requests with 206 carrying only the requested slices.
+ * Compressible files are sent gzip or brotli encoded when the client accepts it.
+ */
 public class HttpStaticRequestHandler {
 
     private static final Logger LOGGER = new Logger(HttpStaticRequestHandler.class.getName());
-    public static final int SESSION_TIMEOUT_MILLIS = 30 * 1000;
-    private static final long maxConnectionsNum = 10000;
+    // more ranges than this are answered with the full representation
+    private static final int MAX_RANGES = 16;
+    private static final ContentEncoding[] PREFERRED_ENCODINGS = {ContentEncoding.BR, ContentEncoding.GZIP};
 
-    private HttpRequest request;
+    private final HttpRequest request;
     private HttpResponse response;
 
-    private final HttpResponseWriter responseWriter = new HttpResponseWriter();
-    private final ReentrantLock writeLock = new ReentrantLock(true);
-    private AsyncFileReaderImpl fileReader;
-    private FileReadHandler fileReadHandler;
-
-    private final String staticContentFolder;
-    private final int sessionTimeoutMillis;
-    private final long creationTimeMillis;
-    private final long connectionNum;
-
-    public HttpStaticRequestHandler(String staticContentFolder, int connectionNum) {
-        this.staticContentFolder = staticContentFolder;
-        this.sessionTimeoutMillis = SESSION_TIMEOUT_MILLIS;
-        this.creationTimeMillis = System.currentTimeMillis();
-        this.connectionNum = connectionNum;
-    }
+    private final HttpResponseWriter responseWriter;
+    private FileChannel fileChannel;
 
-    public void read(ReadableByteChannel channel) throws IOException {
-//        String raw = new RawRequestReader().readRaw(channel);
-        request = new HttpRequestParser().parse(channel);
-        LOGGER.info("Parsed incoming HTTP request: " + request);
+    private final StaticContentCache contentCache;
 
-        response = validateRequestTimeoutAndRateLimit();
-        if (response != null) {
-            LOGGER.warn("Invalid incoming HTTP request: " + request + ", response: " + response);
-        }
+    public HttpStaticRequestHandler(StaticContentCache contentCache, HttpRequest request,
+                                    HttpResponseWriter responseWriter) {
+        this.contentCache = contentCache;
+        this.request = request;
+        this.responseWriter = responseWriter;
     }
 
-    private HttpResponse validateRequestTimeoutAndRateLimit() {
-        long time = System.currentTimeMillis();
-        if (time - creationTimeMillis > sessionTimeoutMillis) {
-            return HttpResponse.buildRequestTimeout();
-        }
-        // check if connection number exceeds the limit
-        if (connectionNum > maxConnectionsNum) {
-            return HttpResponse.buildTooManyRequests();
-        }
-        return null;
+    /** Answers the request with the given response instead of looking up a file. */
+    public void respondWith(HttpResponse immediateResponse) {
+        this.response = immediateResponse;
     }
 
-    public void write(WritableByteChannel channel) throws IOException {
-        if (request == null) {
-            throw new IllegalStateException("Request is not initialized");
-        }
+    /** Resolves the response so that headers can still be adjusted before anything is written. */
+    public HttpResponse prepareResponse() {
+        initFileResponse();
+        return response;
+    }
 
+    /** Writes what the channel takes right now; returns the number of bytes. */
+    public long write(WritableByteChannel channel) throws IOException {
         initFileResponse();
-        responseWriter.writeHeaders(channel, response);
-        validateSessionTimeout();
-        writePendingContent(channel);
-        scheduleFileForRead();
+        return responseWriter.write(channel, response);
     }
 
     private void initFileResponse() {
         // an error response may be already there
-        if (response != null) {
-            return;
+        if (response == null) {
+            resolveFileResponse();
+        }
+        // the same headers as for GET, but no body: on a kept-alive connection it would be read as the next response
+        if ("HEAD".equals(request.method) && response.hasPendingContent()) {
+            response.omitBody();
+            releaseSilently();
         }
+    }
 
+    private void resolveFileResponse() {
         try {
-            String filePath = (staticContentFolder + request.path).replace("/", File.separator);
-            fileReader = new AsyncFileReaderImpl(filePath);
-            fileReadHandler = new FileReadHandler();
-            response = HttpResponse.buildFileResponse(fileReader.getMetadata());
-            LOGGER.info("Started reading file for request: " + request);
+            Path path = contentCache.resolve(request.path);
+            if (path == null) {
+                throw new IOException("Path outside of the content folder: " + request.path);
+            }
+
+            CachedFile identity = contentCache.get(path);
+            if (identity != null) {
+                CachedFile cached = negotiateEncoding(path, identity);
+                FileMetadata metadata = cached.getMetadata();
+                List<ByteRange> ranges = requestedRanges(metadata);
+                HttpResponse unmet = checkPreconditions(metadata);
+                if (unmet != null) {
+                    response = unmet;
+                } else if (ranges == null) {
+                    response = HttpResponse.buildCachedFileResponse(cached);
+                } else if (ranges.isEmpty()) {
+                    response = HttpResponse.buildRangeNotSatisfiable(metadata);
+                } else {
+                    response = HttpResponse.buildPartialResponse(metadata, ranges, range ->
+                            new BufferContent(cached.body().slice((int) range.start(), (int) range.length())));
+                }
+                return;
+            }
+
+            // too large for the cache: stream it from disk
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                throw new IOException("Not a regular file: " + path);
+            }
+            FileMetadata metadata = new FileMetadata(attributes.size(), path.toString(),
+                    attributes.lastModifiedTime().toMillis());
+            HttpResponse unmet = checkPreconditions(metadata);
+            if (unmet != null) {
+                response = unmet;
+                return;
+            }
+            List<ByteRange> ranges = requestedRanges(metadata);
+            if (ranges != null && ranges.isEmpty()) {
+                response = HttpResponse.buildRangeNotSatisfiable(metadata);
+                return;
+            }
+
+            fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+            if (ranges == null) {
+                response = HttpResponse.buildFileResponse(metadata);
+                response.addContentSource(new FileRegion(fileChannel, 0, metadata.getSize()));
+                response.markAsComplete();
+            } else {
+                // positional transfers straight from the file, one region per requested slice
+                FileChannel source = fileChannel;
+                response = HttpResponse.buildPartialResponse(metadata, ranges,
+                        range -> new FileRegion(source, range.start(), range.length()));
+            }
+            LOGGER.info("Started sending file for request: " + request);
         } catch (IOException e) {
             LOGGER.warn("Could not read file for request: " + request);
+            releaseSilently();
             response = HttpResponse.buildNotFound("Could not read file");
         }
     }
 
-    private void validateSessionTimeout() {
-        long time = System.currentTimeMillis();
-        if (time - creationTimeMillis > sessionTimeoutMillis) {
-            writeLock.lock();
-
-            try {
-                LOGGER.warn("Session timeout exceeded for request: " + request);
-                response.markAsComplete();
-                // get rid of buffered pending data
-                response.flushPendingContent();
-            } finally {
-                writeLock.unlock();
+    /**
+     * Picks the encoded variant the client accepts, preferring brotli over gzip.
+     * Files too large for the cache are always sent unencoded.
+     */
+    private CachedFile negotiateEncoding(Path path, CachedFile identity) throws IOException {
+        String acceptEncoding = request.header("Accept-Encoding");
+        if (acceptEncoding == null || !identity.getMetadata().isNegotiable()) {
+            return identity;
+        }
+        for (ContentEncoding encoding : PREFERRED_ENCODINGS) {
+            if (encoding.isAcceptedBy(acceptEncoding)) {
+                CachedFile variant = contentCache.get(path, encoding);
+                if (variant != null) {
+                    return variant;
+                }
             }
         }
+        return identity;
     }
 
-    private void writePendingContent(WritableByteChannel channel) throws IOException {
-        // write only if there is an opportunity, otherwise - write on next tick
-        boolean responseLocked = writeLock.tryLock();
-        if (responseLocked) {
-            try {
-                responseWriter.writeContent(channel, response);
-            } finally {
-                writeLock.unlock();
+    /**
+     * Returns 304 if a GET or HEAD can be answered from the client's copy, 412 if another method's
+     * If-None-Match matches, or null if the request goes ahead.
+     */
+    private HttpResponse checkPreconditions(FileMetadata metadata) {
+        boolean safe = "GET".equals(request.method) || "HEAD".equals(request.method);
+        // If-None-Match takes precedence, If-Modified-Since is ignored when it is present
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (!matchesETag(ifNoneMatch, metadata.getETag())) {
+                return null;
             }
+            return safe ? HttpResponse.buildNotModified(metadata) : HttpResponse.buildPreconditionFailed();
         }
-    }
 
-    private void scheduleFileForRead() {
-        if (fileReader == null) {
-            return;
+        if (!safe) {
+            return null;
+        }
+        long since = HttpDates.parse(request.header("If-Modified-Since"));
+        // HTTP-dates have a resolution of one second
+        if (since >= 0 && metadata.getLastModifiedMillis() / 1000 <= since / 1000) {
+            return HttpResponse.buildNotModified(metadata);
         }
-        fileReader.readNextChunk(fileReadHandler);
+        return null;
     }
 
-    public boolean hasNothingToWrite() {
-        boolean responseLocked = writeLock.tryLock();
-        if (responseLocked) {
-            try {
-                return response.isComplete() && !response.hasPendingContent();
-            } finally {
-                writeLock.unlock();
-            }
+    /**
+     * Returns the ranges to serve, an empty list if none is satisfiable,
+     * or null if the full representation should be sent.
+     */
+    private List<ByteRange> requestedRanges(FileMetadata metadata) {
+        String range = request.header("Range");
+        if (range == null || !"GET".equals(request.method)) {
+            return null;
+        }
+        String ifRange = request.header("If-Range");
+        if (ifRange != null && !matchesIfRange(ifRange.trim(), metadata)) {
+            return null;
         }
-        return false;
-    }
 
-    public void releaseSilently() {
-        if (fileReader != null) {
-            fileReader.closeSilently();
+        List<ByteRange> ranges = ByteRange.parse(range, metadata.getSize());
+        if (ranges == null || ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        // more bytes than the file has means overlapping ranges, which would send parts of it repeatedly
+        long requested = 0;
+        for (ByteRange r : ranges) {
+            requested += r.length();
         }
+        if (requested > metadata.getSize()) {
+            return null;
+        }
+        return ByteRange.coalesce(ranges);
     }
 
-    private class FileReadHandler implements AsyncFileReaderImpl.ReadHandler {
-        @Override
-        public void onRead(byte[] data) {
-            writeLock.lock();
-            try {
-                if (!response.isComplete()) {
-                    response.addContentChunk(data);
-                }
-            } finally {
-                writeLock.unlock();
-            }
+    // If-Range needs a strong match: either the exact entity tag or the exact modification date
+    private static boolean matchesIfRange(String ifRange, FileMetadata metadata) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(metadata.getETag());
         }
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && date / 1000 == metadata.getLastModifiedMillis() / 1000;
+    }
 
-        @Override
-        public void onComplete() {
-            LOGGER.info("Finished reading file for request: " + request);
-            writeLock.lock();
-            try {
-                response.markAsComplete();
-            } finally {
-                writeLock.unlock();
+    // weak comparison, as If-None-Match requires
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        String value = ifNoneMatch.trim();
+        if (value.equals("*")) {
+            return true;
+        }
+        for (String candidate : value.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
             }
         }
+        return false;
+    }
 
-        @Override
-        public void onError(Throwable e) {
-            LOGGER.error("Error during reading file for request: " + request, e);
-            writeLock.lock();
-            try {
-                response.markAsComplete();
-            } finally {
-                writeLock.unlock();
-            }
+    public boolean hasNothingToWrite() {
+        return response.isComplete() && !response.hasPendingContent() && !responseWriter.hasPendingHeaders();
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public void releaseSilently() {
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error during closing file channel", e);
         }
+        fileChannel = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package server.request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a request body piece by piece, already stripped of any transfer coding.
+ * <p>
+ * Called on the connection's event loop; nothing more is read from the socket until a call
+ * returns, so a slow consumer throttles the client through TCP flow control instead of having
+ * the body pile up in memory.
+ */
+@FunctionalInterface
+public interface BodyConsumer {
+
+    BodyConsumer DISCARD = chunk -> chunk.position(chunk.limit());
+
+    /** Takes the next piece of the body. The buffer is only valid during the call. */
+    void onData(ByteBuffer chunk) throws IOException;
+
+    /** Called once after the last piece. */
+    default void onComplete() throws IOException {
+    }
+}
@@ -0,0 +1,96 @@
+package server.request;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/** An inclusive byte range of a representation, as requested with the Range header. */
+public record ByteRange(long start, long end) {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Parses a Range header against a representation of the given size.
+     * Returns null if the header is absent or malformed (in which case it must be ignored),
+     * an empty list if no range is satisfiable, otherwise the satisfiable ranges in request order.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        int specs = 0;
+        for (String spec : value.substring(BYTES_UNIT.length()).split(",")) {
+            String part = spec.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            int dash = part.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            specs++;
+
+            try {
+                String first = part.substring(0, dash).trim();
+                String last = part.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // suffix range: the final N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start < size) {
+                    ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return specs == 0 ? null : ranges;
+    }
+
+    /** Sorts the ranges and merges the ones that overlap or touch, so that no byte is sent twice. */
+    public static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::start));
+
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            ByteRange next = sorted.get(i);
+            // ends are capped at the last byte, so this can't overflow
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,206 @@
+package server.request;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The header fields of a request, kept as offsets into the request head they were parsed from.
+ * Nothing is decoded up front: lookups compare bytes, common names resolve to interned constants
+ * and values become strings only when asked for.
+ */
+public final class HttpHeaders {
+
+    public static final String HOST = "host";
+    public static final String CONNECTION = "connection";
+    public static final String CONTENT_LENGTH = "content-length";
+    public static final String CONTENT_TYPE = "content-type";
+    public static final String TRANSFER_ENCODING = "transfer-encoding";
+    public static final String EXPECT = "expect";
+    public static final String ACCEPT = "accept";
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String ACCEPT_LANGUAGE = "accept-language";
+    public static final String USER_AGENT = "user-agent";
+    public static final String REFERER = "referer";
+    public static final String COOKIE = "cookie";
+    public static final String AUTHORIZATION = "authorization";
+    public static final String CACHE_CONTROL = "cache-control";
+    public static final String PRAGMA = "pragma";
+    public static final String RANGE = "range";
+    public static final String IF_RANGE = "if-range";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String IF_MODIFIED_SINCE = "if-modified-since";
+    public static final String UPGRADE = "upgrade";
+    public static final String ORIGIN = "origin";
+
+    private static final String[] KNOWN_NAMES = {
+            HOST, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, TRANSFER_ENCODING, EXPECT, ACCEPT, ACCEPT_ENCODING,
+            ACCEPT_LANGUAGE, USER_AGENT, REFERER, COOKIE, AUTHORIZATION, CACHE_CONTROL, PRAGMA, RANGE, IF_RANGE,
+            IF_NONE_MATCH, IF_MODIFIED_SINCE, UPGRADE, ORIGIN
+    };
+
+    static final HttpHeaders EMPTY = new HttpHeaders(new byte[0], new int[0], 0);
+
+    private final byte[] data;
+    // four entries per field: name start, name end, value start, value end
+    private final int[] bounds;
+    private final int size;
+    // lower-cased names and decoded values, filled in on first use
+    private final String[] names;
+    private final String[] values;
+
+    HttpHeaders(byte[] data, int[] bounds, int size) {
+        this.data = data;
+        this.bounds = bounds;
+        this.size = size;
+        this.names = new String[size];
+        this.values = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = knownName(data, bounds[4 * i], bounds[4 * i + 1]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The lower-cased name of the i-th field; common names are interned constants. */
+    public String name(int i) {
+        String name = names[i];
+        if (name == null) {
+            int start = bounds[4 * i];
+            name = new String(data, start, bounds[4 * i + 1] - start, StandardCharsets.ISO_8859_1).toLowerCase();
+            names[i] = name;
+        }
+        return name;
+    }
+
+    public String value(int i) {
+        String value = values[i];
+        if (value == null) {
+            int start = bounds[4 * i + 2];
+            value = new String(data, start, bounds[4 * i + 3] - start, StandardCharsets.ISO_8859_1);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    /** A read-only view of the i-th value, without copying it. */
+    public ByteBuffer valueSlice(int i) {
+        int start = bounds[4 * i + 2];
+        return ByteBuffer.wrap(data, start, bounds[4 * i + 3] - start).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the value of the named field, or null; the name is matched case-insensitively.
+     * Repeated fields are joined with ", ".
+     */
+    public String get(String name) {
+        String joined = null;
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, name)) {
+                joined = joined == null ? value(i) : joined + ", " + value(i);
+            }
+        }
+        return joined;
+    }
+
+    public boolean contains(String name) {
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True if any of the comma-separated elements of the named field equals the token, ignoring case. */
+    public boolean containsToken(String name, String token) {
+        for (int i = 0; i < size; i++) {
+            if (!nameEquals(i, name)) {
+                continue;
+            }
+            int end = bounds[4 * i + 3];
+            int elementStart = bounds[4 * i + 2];
+            for (int p = elementStart; p <= end; p++) {
+                if (p == end || data[p] == ',') {
+                    if (trimmedEqualsIgnoreCase(elementStart, p, token)) {
+                        return true;
+                    }
+                    elementStart = p + 1;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean nameEquals(int i, String name) {
+        String known = names[i];
+        if (known != null) {
+            return known == name || known.equalsIgnoreCase(name);
+        }
+        return regionEqualsIgnoreCase(data, bounds[4 * i], bounds[4 * i + 1], name);
+    }
+
+    private boolean trimmedEqualsIgnoreCase(int start, int end, String token) {
+        while (start < end && isWhitespace(data[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(data[end - 1])) {
+            end--;
+        }
+        return regionEqualsIgnoreCase(data, start, end, token);
+    }
+
+    private static String knownName(byte[] data, int start, int end) {
+        for (String known : KNOWN_NAMES) {
+            if (regionEqualsIgnoreCase(data, start, end, known)) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    static boolean regionEqualsIgnoreCase(byte[] data, int start, int end, String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (toLower(data[start + i]) != toLower((byte) ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean regionEqualsIgnoreCase(ByteBuffer data, int start, int end, String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (toLower(data.get(start + i)) != toLower((byte) ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("HttpHeaders{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(name(i)).append('=').append(value(i));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -1,15 +1,66 @@
 package server.request;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class HttpRequest {
 
     public final String method;
     public final String path;
     public final String version;
+    public final boolean keepAlive;
+
+    private final HttpHeaders headers;
+    // null if the request has no body
+    private final RequestBody body;
+    // the request head the target and the headers point into
+    private final byte[] head;
+    private final int targetStart;
+    private final int targetEnd;
 
     public HttpRequest(String method, String path, String version) {
+        this(method, path, version, HttpHeaders.EMPTY, "HTTP/1.1".equals(version));
+    }
+
+    public HttpRequest(String method, String path, String version, HttpHeaders headers, boolean keepAlive) {
+        this(method, path.getBytes(StandardCharsets.ISO_8859_1), 0, path.length(), version, headers, null,
+                keepAlive);
+    }
+
+    HttpRequest(String method, byte[] head, int targetStart, int targetEnd, String version,
+                HttpHeaders headers, RequestBody body, boolean keepAlive) {
         this.method = method;
-        this.path = path;
+        this.head = head;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.path = new String(head, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
         this.version = version;
+        this.headers = headers;
+        this.body = body;
+        this.keepAlive = keepAlive;
+    }
+
+    /** Returns the header value or null; the name is matched case-insensitively. */
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    public boolean hasBody() {
+        return body != null;
+    }
+
+    /** The body, streamed as it arrives; null if the request has none. */
+    public RequestBody body() {
+        return body;
+    }
+
+    /** A read-only view of the raw request target, without copying it. */
+    public ByteBuffer target() {
+        return ByteBuffer.wrap(head, targetStart, targetEnd - targetStart).slice().asReadOnlyBuffer();
     }
 
     @Override
@@ -18,6 +69,8 @@ public class HttpRequest {
                 "method='" + method + '\'' +
                 ", path='" + path + '\'' +
                 ", version='" + version + '\'' +
+                ", keepAlive=" + keepAlive +
+                (body == null ? "" : ", body=" + body) +
                 '}';
     }
 }
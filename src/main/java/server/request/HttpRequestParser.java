@@ -1,23 +1,300 @@
 package server.request;
 
 import java.io.IOException;
-import java.nio.channels.ReadableByteChannel;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-public class HttpRequestParser extends RawRequestReader{
+/**
+ * Incremental request head parser working on the raw bytes of the read buffer.
+ * <p>
+ * Each call continues where the previous one stopped, so a head arriving in many small reads is
+ * scanned exactly once. Only offsets are recorded while scanning; when the head is complete it is
+ * copied once into an array owned by the request, since the read buffer is reused for what follows.
+ * The target and header slices point into that array; only the path is decoded into a string of its
+ * own. Common methods and versions are interned constants, header names are resolved the same way.
+ */
+public class HttpRequestParser extends RawRequestReader {
 
-    public HttpRequest parse(ReadableByteChannel channel) throws IOException {
-        String raw = readRaw(channel);
-        try {
-            StringTokenizer tokenizer = new StringTokenizer(raw);
-            String method = tokenizer.nextToken().toUpperCase();
-            String path = tokenizer.nextToken();
-            String version = tokenizer.nextToken();
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String[] KNOWN_METHODS = {
+            "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"
+    };
+    private static final int MAX_HEADERS = 100;
 
-            return new HttpRequest(method, path, version);
-        } catch (Exception e) {
-            throw new IOException("Malformed request", e);
+    private static final int START = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int LINE_LF = 4;
+    private static final int HEADER_START = 5;
+    private static final int HEADER_NAME = 6;
+    private static final int VALUE_START = 7;
+    private static final int VALUE = 8;
+    private static final int HEAD_END_LF = 9;
+    private static final int COMPLETE = 10;
+
+    private int state = START;
+    // scan position and the offsets found so far, all relative to the start of the buffer
+    private int position;
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+    // four entries per header, reused across requests
+    private int[] headerBounds = new int[4 * 16];
+    private int headerCount;
+    // body of the request returned last, until all of it has been read
+    private RequestBody body;
+
+    /**
+     * Returns the next request already buffered, or null if none is complete yet.
+     * While the body of the previous request is still being read there is no next request.
+     */
+    public HttpRequest nextRequest() throws IOException {
+        if (hasBodyInProgress() || !hasCompleteHead()) {
+            return null;
+        }
+
+        int headLength = position;
+        byte[] head = new byte[headLength];
+        data().get(0, head);
+        HttpHeaders headers = new HttpHeaders(head, Arrays.copyOf(headerBounds, 4 * headerCount), headerCount);
+        String method = method(head, methodStart, methodEnd);
+        String version = version(head, versionStart, versionEnd);
+        RequestBody requestBody = RequestBody.of(headers);
+        HttpRequest request = new HttpRequest(method, head, targetStart, targetEnd, version, headers, requestBody,
+                isKeepAlive(version, headers));
+
+        consume(headLength);
+        reset();
+        body = requestBody;
+        return request;
+    }
+
+    public boolean hasBodyInProgress() {
+        return body != null && !body.isComplete();
+    }
+
+    /**
+     * Passes the buffered bytes of the current body on to its consumer.
+     * Returns true once the body is complete, false if more bytes have to be read first.
+     */
+    public boolean readBody() throws IOException {
+        int decoded = body.decode(data(), 0, available());
+        consume(decoded);
+        if (!body.isComplete()) {
+            return false;
+        }
+        body = null;
+        return true;
+    }
+
+    @Override
+    protected boolean canProcessBuffered() throws IOException {
+        // body bytes are handed over as they come, only heads need to be buffered completely
+        if (hasBodyInProgress()) {
+            return true;
+        }
+        return hasCompleteHead();
+    }
+
+    private boolean hasCompleteHead() throws IOException {
+        if (state != COMPLETE) {
+            advance(data(), available());
         }
+        return state == COMPLETE;
+    }
+
+    private void advance(ByteBuffer data, int limit) throws IOException {
+        while (position < limit && state != COMPLETE) {
+            byte b = data.get(position);
+            switch (state) {
+                case START -> {
+                    // robustness: empty lines ahead of the request line are ignored
+                    if (b != '\r' && b != '\n') {
+                        methodStart = position;
+                        state = METHOD;
+                        continue;
+                    }
+                }
+                case METHOD -> {
+                    if (b == ' ') {
+                        methodEnd = position;
+                        if (methodEnd == methodStart) {
+                            throw malformed("empty method");
+                        }
+                        targetStart = position + 1;
+                        state = TARGET;
+                    } else if (!isTokenChar(b)) {
+                        throw malformed("invalid method");
+                    }
+                }
+                case TARGET -> {
+                    if (b == ' ') {
+                        targetEnd = position;
+                        if (targetEnd == targetStart) {
+                            throw malformed("empty request target");
+                        }
+                        versionStart = position + 1;
+                        state = VERSION;
+                    } else if (b <= ' ' || b == 0x7f) {
+                        throw malformed("invalid request target");
+                    }
+                }
+                case VERSION -> {
+                    if (b == '\r' || b == '\n') {
+                        versionEnd = position;
+                        if (versionEnd - versionStart != HTTP_1_1.length()
+                                || !HttpHeaders.regionEqualsIgnoreCase(data, versionStart, versionStart + 5, "HTTP/")) {
+                            throw malformed("invalid version");
+                        }
+                        state = b == '\r' ? LINE_LF : HEADER_START;
+                    }
+                }
+                case LINE_LF -> {
+                    if (b != '\n') {
+                        throw malformed("CR without LF");
+                    }
+                    state = HEADER_START;
+                }
+                case HEADER_START -> {
+                    if (b == '\r') {
+                        state = HEAD_END_LF;
+                    } else if (b == '\n') {
+                        state = COMPLETE;
+                    } else if (b == ' ' || b == '\t') {
+                        // obsolete line folding, RFC 9112 allows rejecting it
+                        throw malformed("folded header line");
+                    } else {
+                        if (headerCount == MAX_HEADERS) {
+                            throw malformed("too many headers");
+                        }
+                        nameStart = position;
+                        state = HEADER_NAME;
+                        continue;
+                    }
+                }
+                case HEADER_NAME -> {
+                    if (b == ':') {
+                        nameEnd = position;
+                        if (nameEnd == nameStart) {
+                            throw malformed("empty header name");
+                        }
+                        state = VALUE_START;
+                    } else if (!isTokenChar(b)) {
+                        throw malformed("invalid header name");
+                    }
+                }
+                case VALUE_START -> {
+                    if (b != ' ' && b != '\t') {
+                        valueStart = position;
+                        valueEnd = position;
+                        state = VALUE;
+                        continue;
+                    }
+                }
+                case VALUE -> {
+                    if (b == '\r' || b == '\n') {
+                        addHeader();
+                        state = b == '\r' ? LINE_LF : HEADER_START;
+                    } else if (b != ' ' && b != '\t') {
+                        // trailing whitespace is not part of the value
+                        valueEnd = position + 1;
+                    }
+                }
+                case HEAD_END_LF -> {
+                    if (b != '\n') {
+                        throw malformed("CR without LF");
+                    }
+                    state = COMPLETE;
+                }
+                default -> throw new IllegalStateException("Unexpected parser state: " + state);
+            }
+            position++;
+        }
+    }
+
+    private void addHeader() {
+        if (headerBounds.length < 4 * (headerCount + 1)) {
+            headerBounds = Arrays.copyOf(headerBounds, headerBounds.length * 2);
+        }
+        int i = 4 * headerCount++;
+        headerBounds[i] = nameStart;
+        headerBounds[i + 1] = nameEnd;
+        headerBounds[i + 2] = valueStart;
+        headerBounds[i + 3] = valueEnd;
+    }
+
+    private void reset() {
+        state = START;
+        position = 0;
+        headerCount = 0;
+    }
+
+    // methods are case-sensitive, "get" is not GET
+    private static String method(byte[] head, int start, int end) {
+        for (String known : KNOWN_METHODS) {
+            if (regionEquals(head, start, end, known)) {
+                return known;
+            }
+        }
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean regionEquals(byte[] data, int start, int end, String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (data[start + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String version(byte[] head, int start, int end) {
+        if (HttpHeaders.regionEqualsIgnoreCase(head, start, end, HTTP_1_1)) {
+            return HTTP_1_1;
+        }
+        if (HttpHeaders.regionEqualsIgnoreCase(head, start, end, HTTP_1_0)) {
+            return HTTP_1_0;
+        }
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isKeepAlive(String version, HttpHeaders headers) {
+        if (headers.containsToken(HttpHeaders.CONNECTION, "close")) {
+            return false;
+        }
+        if (headers.containsToken(HttpHeaders.CONNECTION, "keep-alive")) {
+            return true;
+        }
+        // persistent by default since HTTP/1.1, opt-in before
+        return HTTP_1_1 == version;
+    }
+
+    // tchar from RFC 9110
+    private static boolean isTokenChar(byte b) {
+        if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9') {
+            return true;
+        }
+        return switch (b) {
+            case '!', '#', '$', '%', '&', '\'', '*', '+', '-', '.', '^', '_', '`', '|', '~' -> true;
+            default -> false;
+        };
+    }
+
+    private static IOException malformed(String reason) {
+        return new IOException("Malformed request: " + reason);
     }
 
-}
\ No newline at end of file
+}
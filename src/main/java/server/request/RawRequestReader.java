@@ -1,39 +1,117 @@
 package server.request;
 
+import common.BufferLease;
+import common.BufferPool;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 
-public class RawRequestReader {
+/**
+ * Owns the connection's read buffer. Subclasses parse straight out of {@link #data()} with
+ * absolute gets and {@link #consume} what they are done with; offsets stay valid until then,
+ * growing the buffer keeps them in place.
+ * <p>
+ * The buffer is leased from the shared {@link BufferPool} on the first read and given back as
+ * soon as everything in it has been consumed, so idle keep-alive connections hold no buffer.
+ */
+public abstract class RawRequestReader {
 
     private final int SOCKET_READ_BUFFER_SIZE_BYTES = 8192;
+    private final int SOCKET_READ_DATA_LIMIT_BYTES = 32768;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
 
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(SOCKET_READ_BUFFER_SIZE_BYTES);
+    private final BufferPool pool = BufferPool.shared();
+    // accumulates bytes across reads; always kept in write mode. Null while nothing is buffered
+    private BufferLease lease;
 
-    public String readRaw(ReadableByteChannel channel) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        readBuffer.clear();
-        int read;
+    /**
+     * Reads everything the channel has available right now.
+     * Returns the number of bytes read, or -1 if the peer closed the connection.
+     */
+    public int readAvailable(ReadableByteChannel channel) throws IOException {
+        if (lease == null) {
+            lease = pool.acquire(SOCKET_READ_BUFFER_SIZE_BYTES);
+        }
+        int read = 0;
         int totalRead = 0;
-        while ((read = channel.read(readBuffer)) > 0) {
-            totalRead += read;
-            int SOCKET_READ_DATA_LIMIT_BYTES = 32768;
-            if (totalRead > SOCKET_READ_DATA_LIMIT_BYTES) {
-                throw new IOException("Request data limit exceeded");
+        while (true) {
+            if (!lease.buffer().hasRemaining()) {
+                if (canProcessBuffered()) {
+                    // what is buffered can be dealt with already, leave the rest in the socket for now
+                    break;
+                }
+                grow();
+            }
+            read = channel.read(lease.buffer());
+            if (read <= 0) {
+                break;
             }
+            totalRead += read;
+        }
+        releaseIfEmpty();
 
-            readBuffer.flip();
-            byte[] bytes = new byte[readBuffer.limit()];
-            readBuffer.get(bytes);
-            sb.append(new String(bytes));
-            readBuffer.clear();
+        if (read < 0 && totalRead == 0) {
+            return -1;
         }
+        return totalRead;
+    }
+
+    public boolean hasBufferedData() {
+        return available() > 0;
+    }
 
-        if (read < 0) {
-            throw new IOException("End of input stream. Connection is closed by the client");
+    /** Gives the read buffer back to the pool, dropping anything still in it. Call when the connection closes. */
+    public void release() {
+        if (lease != null) {
+            lease.release();
+            lease = null;
         }
+    }
+
+    /**
+     * True if the buffered bytes can be processed without reading more, so the buffer need not grow.
+     * May advance the subclass's parse state.
+     */
+    protected abstract boolean canProcessBuffered() throws IOException;
 
-        return sb.toString();
+    /**
+     * The read buffer, for absolute access only; valid data spans from index 0 to {@link #available()}.
+     * Only valid until the next call to {@link #consume} or {@link #readAvailable}.
+     */
+    protected final ByteBuffer data() {
+        return lease != null ? lease.buffer() : EMPTY;
+    }
+
+    protected final int available() {
+        return lease != null ? lease.buffer().position() : 0;
+    }
+
+    /** Drops the first length bytes, moving whatever follows them to the front. */
+    protected final void consume(int length) {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer readBuffer = lease.buffer();
+        readBuffer.flip();
+        readBuffer.position(length);
+        readBuffer.compact();
+        releaseIfEmpty();
+    }
+
+    private void releaseIfEmpty() {
+        if (lease != null && lease.buffer().position() == 0) {
+            release();
+        }
+    }
+
+    private void grow() throws IOException {
+        int capacity = lease.capacity();
+        if (capacity >= SOCKET_READ_DATA_LIMIT_BYTES) {
+            throw new IOException("Request data limit exceeded");
+        }
+        lease = pool.grow(lease, Math.min(capacity * 2, SOCKET_READ_DATA_LIMIT_BYTES));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,252 @@
+package server.request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a request, framed either by Content-Length or by chunked transfer coding.
+ * <p>
+ * Nothing is buffered here: {@link HttpRequestParser} hands over whatever body bytes are in its
+ * read buffer, they are decoded in place and passed on to the {@link BodyConsumer}. Until a
+ * consumer is set the body is discarded, which keeps the connection usable for the next request.
+ */
+public final class RequestBody {
+
+    private static final String CHUNKED = "chunked";
+    // chunk size lines and trailers are not part of the content, but still have to be bounded
+    private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+    private static final int MAX_LINE_OVERHEAD = 4096;
+
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int SIZE_LF = 2;
+    private static final int DATA = 3;
+    private static final int DATA_CR = 4;
+    private static final int DATA_LF = 5;
+    private static final int TRAILER_START = 6;
+    private static final int TRAILER = 7;
+    private static final int END_LF = 8;
+    private static final int DONE = 9;
+
+    private final long contentLength;
+    private final boolean chunked;
+    private BodyConsumer consumer = BodyConsumer.DISCARD;
+
+    // bytes of content still expected: of the whole body, or of the current chunk
+    private long remaining;
+    private long received;
+    private int state;
+    private int sizeDigits;
+    private int lineOverhead;
+
+    private RequestBody(long contentLength, boolean chunked) {
+        this.contentLength = contentLength;
+        this.chunked = chunked;
+        this.remaining = chunked ? 0 : contentLength;
+        this.state = chunked ? SIZE : DATA;
+    }
+
+    /** Returns the body announced by the headers, or null if the request has none. */
+    static RequestBody of(HttpHeaders headers) throws IOException {
+        String transferEncoding = headers.get(HttpHeaders.TRANSFER_ENCODING);
+        String contentLength = headers.get(HttpHeaders.CONTENT_LENGTH);
+        if (transferEncoding != null) {
+            // both framings at once is how requests get smuggled past proxies
+            if (contentLength != null) {
+                throw new IOException("Malformed request: both Transfer-Encoding and Content-Length");
+            }
+            // chunked has to be the final coding and no other coding is supported
+            if (!transferEncoding.trim().equalsIgnoreCase(CHUNKED)) {
+                throw new IOException("Unsupported transfer coding: " + transferEncoding);
+            }
+            return new RequestBody(-1, true);
+        }
+
+        if (contentLength == null) {
+            return null;
+        }
+        long length = parseContentLength(contentLength);
+        return length == 0 ? null : new RequestBody(length, false);
+    }
+
+    // repeated fields arrive joined with ", " and are only acceptable if they all agree
+    private static long parseContentLength(String value) throws IOException {
+        long length = -1;
+        for (String part : value.split(",")) {
+            long parsed;
+            try {
+                parsed = Long.parseLong(part.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed request: invalid Content-Length " + value);
+            }
+            if (parsed < 0 || length >= 0 && parsed != length) {
+                throw new IOException("Malformed request: invalid Content-Length " + value);
+            }
+            length = parsed;
+        }
+        return length;
+    }
+
+    /** Sets where the content goes; has to happen before the first byte is decoded. */
+    public void setConsumer(BodyConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /** The announced length, or -1 for a chunked body. */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /** Content bytes passed to the consumer so far. */
+    public long received() {
+        return received;
+    }
+
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    /** Decodes body bytes from data's indices [offset, limit) and returns how many of them belong to the body. */
+    int decode(ByteBuffer data, int offset, int limit) throws IOException {
+        int position = offset;
+        while (position < limit && state != DONE) {
+            if (state == DATA) {
+                int length = (int) Math.min(remaining, limit - position);
+                deliver(data, position, length);
+                position += length;
+                remaining -= length;
+                if (remaining == 0) {
+                    if (chunked) {
+                        state = DATA_CR;
+                    } else {
+                        finish();
+                    }
+                }
+                continue;
+            }
+            decodeFraming(data.get(position++));
+        }
+        return position - offset;
+    }
+
+    private void decodeFraming(byte b) throws IOException {
+        if (state != DATA_CR && ++lineOverhead > MAX_LINE_OVERHEAD) {
+            throw new IOException("Malformed chunked body: line too long");
+        }
+        switch (state) {
+            case SIZE -> {
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (++sizeDigits > MAX_CHUNK_SIZE_DIGITS) {
+                        throw new IOException("Malformed chunked body: chunk too large");
+                    }
+                    remaining = remaining * 16 + digit;
+                } else if (sizeDigits == 0) {
+                    throw new IOException("Malformed chunked body: missing chunk size");
+                } else if (b == ';' || b == ' ' || b == '\t') {
+                    state = EXTENSION;
+                } else {
+                    endOfSizeLine(b);
+                }
+            }
+            // chunk extensions are ignored
+            case EXTENSION -> {
+                if (b == '\r' || b == '\n') {
+                    endOfSizeLine(b);
+                }
+            }
+            case SIZE_LF -> {
+                expectLf(b);
+                startChunk();
+            }
+            case DATA_CR -> {
+                if (b == '\r') {
+                    state = DATA_LF;
+                } else if (b == '\n') {
+                    nextSizeLine();
+                } else {
+                    throw new IOException("Malformed chunked body: missing CRLF after chunk");
+                }
+            }
+            case DATA_LF -> {
+                expectLf(b);
+                nextSizeLine();
+            }
+            // trailer fields are read past and dropped
+            case TRAILER_START -> {
+                if (b == '\r') {
+                    state = END_LF;
+                } else if (b == '\n') {
+                    finish();
+                } else {
+                    state = TRAILER;
+                }
+            }
+            case TRAILER -> {
+                if (b == '\n') {
+                    state = TRAILER_START;
+                }
+            }
+            case END_LF -> {
+                expectLf(b);
+                finish();
+            }
+            default -> throw new IllegalStateException("Unexpected body state: " + state);
+        }
+    }
+
+    private void endOfSizeLine(byte b) throws IOException {
+        if (b == '\r') {
+            state = SIZE_LF;
+        } else if (b == '\n') {
+            startChunk();
+        } else {
+            throw new IOException("Malformed chunked body: invalid chunk size");
+        }
+    }
+
+    private void startChunk() {
+        lineOverhead = 0;
+        // the zero-sized chunk ends the content, trailers may follow
+        state = remaining == 0 ? TRAILER_START : DATA;
+    }
+
+    private void nextSizeLine() {
+        state = SIZE;
+        sizeDigits = 0;
+        remaining = 0;
+        lineOverhead = 0;
+    }
+
+    private static void expectLf(byte b) throws IOException {
+        if (b != '\n') {
+            throw new IOException("Malformed chunked body: CR without LF");
+        }
+    }
+
+    private void deliver(ByteBuffer data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        received += length;
+        consumer.onData(data.slice(offset, length).asReadOnlyBuffer());
+    }
+
+    private void finish() throws IOException {
+        state = DONE;
+        consumer.onComplete();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBody{" +
+                "contentLength=" + contentLength +
+                ", chunked=" + chunked +
+                ", received=" + received +
+                '}';
+    }
+}
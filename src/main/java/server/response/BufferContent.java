@@ -0,0 +1,30 @@
+package server.response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Body part backed by a buffer, e.g. a cached file; the buffer is consumed while writing. */
+public class BufferContent implements ContentSource {
+
+    private final ByteBuffer buffer;
+
+    public BufferContent(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return channel.write(buffer);
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+}
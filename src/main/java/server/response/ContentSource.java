@@ -0,0 +1,29 @@
+package server.response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Part of a response body that writes itself to the client channel, e.g. a region of a file.
+ * Writes are non-blocking: a source may need several calls until it has nothing remaining.
+ */
+public interface ContentSource {
+
+    /** Writes as much as the channel currently accepts and returns the number of bytes written. */
+    long writeTo(WritableByteChannel channel) throws IOException;
+
+    boolean hasRemaining();
+
+    /**
+     * The unwritten bytes if the source is backed by a buffer, null otherwise. Buffers are gathered
+     * with the header block and each other into a single write; writing them consumes the source.
+     */
+    default ByteBuffer buffer() {
+        return null;
+    }
+
+    /** Releases what the source holds; called once it is written or discarded. */
+    default void closeSilently() {
+    }
+}
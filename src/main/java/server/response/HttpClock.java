@@ -0,0 +1,46 @@
+package server.response;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The current time as an HTTP-date, for the Date header of every response.
+ * <p>
+ * The date only changes once per second, so it is formatted and encoded once per second and
+ * shared by all worker loops. Whoever first notices a new second publishes the new snapshot;
+ * a racing duplicate is equal, so no locking is needed.
+ */
+public final class HttpClock {
+
+    private record Snapshot(long epochSecond, String date, byte[] dateHeaderLine) {
+    }
+
+    private static volatile Snapshot current = snapshot(System.currentTimeMillis() / 1000);
+
+    private HttpClock() {
+    }
+
+    /** The current IMF-fixdate, e.g. "Sun, 06 Nov 1994 08:49:37 GMT". */
+    public static String date() {
+        return now().date();
+    }
+
+    /** "Date: ...\r\n" for the current second. Shared, must not be modified. */
+    static byte[] dateHeaderLine() {
+        return now().dateHeaderLine();
+    }
+
+    private static Snapshot now() {
+        long epochSecond = System.currentTimeMillis() / 1000;
+        Snapshot snapshot = current;
+        if (snapshot.epochSecond() != epochSecond) {
+            snapshot = snapshot(epochSecond);
+            current = snapshot;
+        }
+        return snapshot;
+    }
+
+    private static Snapshot snapshot(long epochSecond) {
+        String date = HttpDates.format(epochSecond * 1000);
+        return new Snapshot(epochSecond, date, ("Date: " + date + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+}
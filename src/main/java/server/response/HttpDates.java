@@ -0,0 +1,34 @@
+package server.response;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/** HTTP-date (RFC 7231 IMF-fixdate) formatting and parsing. */
+public final class HttpDates {
+
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private HttpDates() {
+    }
+
+    public static String format(long epochMillis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /** Returns the epoch millis of an HTTP-date, or -1 if the value can't be parsed. */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1L;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1L;
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package server.response;
 
+import server.fs.CachedFile;
 import server.fs.FileMetadata;
+import server.request.ByteRange;
 
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 public final class HttpResponse {
 
-    private final String SUPPORTED_HTTP_VERSION = "HTTP/1.1";
+    private static final String SERVER_NAME = "Simple NIO HTTP Server v1.0.0";
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss z", Locale.GERMANY);
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
-    static {
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    // fixed header lines, encoded once
+    static final byte[] SERVER_LINE = ("Server: " + SERVER_NAME + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONNECTION_CLOSE_LINE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONNECTION_KEEP_ALIVE_LINE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] KEEP_ALIVE_TIMEOUT_PREFIX = "Keep-Alive: timeout=".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] KEEP_ALIVE_MAX_PREFIX = ", max=".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONTENT_LENGTH_PREFIX = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
 
     public static HttpResponse buildBadRequest(String msg) {
         return buildImmediateResponse(HttpStatus.BAD_REQUEST, msg);
@@ -29,15 +37,26 @@ public final class HttpResponse {
                 "Session timeout exceeded");
     }
 
-    public static HttpResponse buildTooManyRequests() {
-        return buildImmediateResponse(HttpStatus.TOO_MANY_REQUESTS,
-                "Connections number exceeded the limit");
+    /** Answer to a request other than GET or HEAD whose If-None-Match matches the current representation. */
+    public static HttpResponse buildPreconditionFailed() {
+        return buildImmediateResponse(HttpStatus.PRECONDITION_FAILED, "Precondition failed");
+    }
+
+    /** Answer to a method the resource doesn't support; allow lists the ones it does. */
+    public static HttpResponse buildMethodNotAllowed(String allow) {
+        HttpResponse response = buildImmediateResponse(HttpStatus.METHOD_NOT_ALLOWED, "Method not allowed");
+        response.headers.put("Allow", allow);
+        return response;
+    }
+
+    /** The interim response that tells a client waiting on "Expect: 100-continue" to send the body. */
+    public static ByteBuffer continueResponse() {
+        return ByteBuffer.wrap(CONTINUE_RESPONSE).asReadOnlyBuffer();
     }
 
     private static HttpResponse buildImmediateResponse(HttpStatus status, String msg) {
         HttpResponse response = new HttpResponse();
-        response.setCode(status.code);
-        response.setReason(status.message);
+        response.setStatus(status);
         byte[] content = msg.getBytes();
         response.addContentChunk(content);
         response.setContentLength(content.length);
@@ -48,61 +67,219 @@ public final class HttpResponse {
 
     public static HttpResponse buildFileResponse(FileMetadata metadata) {
         HttpResponse response = new HttpResponse();
-        response.setCode(HttpStatus.SUCCESS.code);
-        response.setReason(HttpStatus.SUCCESS.message);
+        response.setStatus(HttpStatus.SUCCESS);
         response.setContentLength(metadata.getSize());
         response.addDefaultHeaders();
+        response.headers.put("Content-Type", metadata.getContentType());
+        response.headers.put("Accept-Ranges", "bytes");
+        response.addContentEncoding(metadata);
+        response.addValidators(metadata);
+        return response;
+    }
+
+    /**
+     * Builds a complete 206 response for the given satisfiable ranges. A single range is sent as is,
+     * several ranges as multipart/byteranges. The slicer provides the body of each range.
+     */
+    public static HttpResponse buildPartialResponse(FileMetadata metadata, List<ByteRange> ranges,
+                                                    Function<ByteRange, ContentSource> slicer) {
+        HttpResponse response = new HttpResponse();
+        response.setStatus(HttpStatus.PARTIAL_CONTENT);
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setContentLength(range.length());
+            response.addDefaultHeaders();
+            response.headers.put("Content-Type", metadata.getContentType());
+            response.headers.put("Content-Range", contentRange(range, metadata.getSize()));
+            response.addContentSource(slicer.apply(range));
+        } else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            long length = 0;
+            for (ByteRange range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n" +
+                        "Content-Type: " + metadata.getContentType() + "\r\n" +
+                        "Content-Range: " + contentRange(range, metadata.getSize()) + "\r\n" +
+                        "\r\n").getBytes(StandardCharsets.US_ASCII);
+                response.addContentSource(new BufferContent(ByteBuffer.wrap(partHeader)));
+                response.addContentSource(slicer.apply(range));
+                length += partHeader.length + range.length();
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            response.addContentSource(new BufferContent(ByteBuffer.wrap(closing)));
+            length += closing.length;
+
+            response.setContentLength(length);
+            response.addDefaultHeaders();
+            response.headers.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        }
+        // ranges of an encoded variant are slices of the encoded bytes
+        response.addContentEncoding(metadata);
+        response.addValidators(metadata);
+        response.markAsComplete();
+        return response;
+    }
+
+    public static HttpResponse buildRangeNotSatisfiable(FileMetadata metadata) {
+        HttpResponse response = buildImmediateResponse(HttpStatus.RANGE_NOT_SATISFIABLE,
+                "Requested range not satisfiable");
+        response.headers.put("Content-Range", "bytes */" + metadata.getSize());
+        return response;
+    }
+
+    private static String contentRange(ByteRange range, long size) {
+        return "bytes " + range.start() + "-" + range.end() + "/" + size;
+    }
+
+    /** Bodiless answer to a conditional request whose validators still match. */
+    public static HttpResponse buildNotModified(FileMetadata metadata) {
+        HttpResponse response = new HttpResponse();
+        response.setStatus(HttpStatus.NOT_MODIFIED);
+        response.addPerResponseHeaders();
+        response.headers.put("Server", SERVER_NAME);
+        response.addValidators(metadata);
+        response.markAsComplete();
         return response;
     }
 
-    private int code;
-    private String reason;
+    /** Builds a complete response whose body and static headers come straight from the cache. */
+    public static HttpResponse buildCachedFileResponse(CachedFile file) {
+        HttpResponse response = new HttpResponse();
+        response.setStatus(HttpStatus.SUCCESS);
+        response.setContentLength(file.getMetadata().getSize());
+        response.renderedHeaders = file.getHeaderBytes();
+        response.addPerResponseHeaders();
+        response.addContentSource(new BufferContent(file.body()));
+        response.markAsComplete();
+        return response;
+    }
+
+    /**
+     * Renders the headers of a file response that don't change between requests,
+     * so they can be cached next to the file content.
+     */
+    public static byte[] renderFileHeaders(FileMetadata metadata) {
+        String headers = "Server: " + SERVER_NAME + "\r\n" +
+                "Content-Type: " + metadata.getContentType() + "\r\n" +
+                "Content-Length: " + metadata.getSize() + "\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                (metadata.getContentEncoding() == null ? ""
+                        : "Content-Encoding: " + metadata.getContentEncoding().token() + "\r\n") +
+                (metadata.isNegotiable() ? "Vary: Accept-Encoding\r\n" : "") +
+                "ETag: " + metadata.getETag() + "\r\n" +
+                "Last-Modified: " + HttpDates.format(metadata.getLastModifiedMillis()) + "\r\n";
+        return headers.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private HttpStatus status;
     private final Map<String, String> headers = new HashMap<>();
+    private byte[] renderedHeaders;
 
-    private List<byte[]> pendingContent = new LinkedList<>();
-    private int pendingContentLength;
+    private final Deque<ContentSource> contentSources = new ArrayDeque<>();
     private long contentLength;
 
+    // Server and Content-Length, unless they come with the rendered headers
+    private boolean defaultHeaders;
+    private boolean keepAlive;
+    private long keepAliveTimeoutSeconds;
+    private int keepAliveMaxRequests;
+
     private boolean complete;
-    private boolean wroteHeaders;
+    private boolean headersEncoded;
 
     public void addDefaultHeaders() {
-        Calendar calendar = Calendar.getInstance();
-        this.headers.put("Date", dateFormat.format(calendar.getTime()));
-        this.headers.put("Server", "Simple NIO HTTP Server v1.0.0");
-        this.headers.put("Connection", "closeSilently");
-        this.headers.put("Content-Length", Long.toString(contentLength));
+        addPerResponseHeaders();
+        this.defaultHeaders = true;
     }
 
-    public String generatePrefix() {
-        return SUPPORTED_HTTP_VERSION + " " + code + " " + reason;
+    private void addValidators(FileMetadata metadata) {
+        this.headers.put("ETag", metadata.getETag());
+        this.headers.put("Last-Modified", HttpDates.format(metadata.getLastModifiedMillis()));
+        // validators differ per variant, so caches have to key on the request's Accept-Encoding too
+        if (metadata.isNegotiable()) {
+            this.headers.put("Vary", "Accept-Encoding");
+        }
+    }
+
+    private void addContentEncoding(FileMetadata metadata) {
+        if (metadata.getContentEncoding() != null) {
+            this.headers.put("Content-Encoding", metadata.getContentEncoding().token());
+        }
+    }
+
+    // Date and Connection are written by HttpResponseWriter from pre-encoded lines
+    private void addPerResponseHeaders() {
+        this.keepAlive = false;
+    }
+
+    public void keepAlive(long idleTimeoutSeconds, int remainingRequests) {
+        this.keepAlive = true;
+        this.keepAliveTimeoutSeconds = idleTimeoutSeconds;
+        this.keepAliveMaxRequests = remainingRequests;
+    }
+
+    public void closeConnection() {
+        this.keepAlive = false;
+    }
+
+    HttpStatus getStatus() {
+        return status;
+    }
+
+    boolean hasDefaultHeaders() {
+        return defaultHeaders;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
     }
 
+    long getKeepAliveTimeoutSeconds() {
+        return keepAliveTimeoutSeconds;
+    }
+
+    int getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /** Headers specific to this response; the fixed ones are added while writing. */
     public Map<String, String> getHeaders() {
         return headers;
     }
 
+    /** Header lines rendered ahead of time (CRLF terminated), written after {@link #getHeaders()}; may be null. */
+    public byte[] getRenderedHeaders() {
+        return renderedHeaders;
+    }
+
     public boolean hasPendingContent() {
-        return pendingContentLength > 0;
+        return !contentSources.isEmpty();
     }
 
-    public byte[] flushPendingContent() {
-        byte[] result = new byte[pendingContentLength];
-        int pos = 0;
-        for (byte[] chunk : pendingContent) {
-            System.arraycopy(chunk, 0, result, pos, chunk.length);
-            pos += chunk.length;
-        }
+    public void addContentChunk(byte[] chunk) {
+        contentSources.add(new BufferContent(ByteBuffer.wrap(chunk)));
+    }
 
-        pendingContent = new LinkedList<>();
-        pendingContentLength = 0;
+    /** Queues a part of the body, written after the ones queued before, see {@link ContentSource}. */
+    public void addContentSource(ContentSource source) {
+        contentSources.add(source);
+    }
 
-        return result;
+    /** Drops the body, as for a HEAD request; the headers, Content-Length included, stay as they are. */
+    public void omitBody() {
+        ContentSource source;
+        while ((source = contentSources.poll()) != null) {
+            source.closeSilently();
+        }
     }
 
-    public void addContentChunk(byte[] chunk) {
-        pendingContent.add(chunk);
-        pendingContentLength += chunk.length;
+    Deque<ContentSource> getContentSources() {
+        return contentSources;
     }
 
     public void setContentLength(long contentLength) {
@@ -117,27 +294,24 @@ public final class HttpResponse {
         this.complete = true;
     }
 
-    public boolean wroteHeaders() {
-        return wroteHeaders;
-    }
-
-    public void markAsWroteHeaders() {
-        this.wroteHeaders = true;
+    /** True once the writer has serialized the header block; later header changes are not sent. */
+    public boolean headersEncoded() {
+        return headersEncoded;
     }
 
-    public void setCode(int code) {
-        this.code = code;
+    public void markHeadersEncoded() {
+        this.headersEncoded = true;
     }
 
-    public void setReason(String reason) {
-        this.reason = reason;
+    void setStatus(HttpStatus status) {
+        this.status = status;
     }
 
     @Override
     public String toString() {
         return "HttpResponse{" +
-                "code=" + code +
-                ", reason='" + reason + '\'' +
+                "code=" + status.code +
+                ", reason='" + status.message + '\'' +
                 '}';
     }
 }
\ No newline at end of file
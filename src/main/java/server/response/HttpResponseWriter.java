@@ -1,51 +1,205 @@
 package server.response;
 
+import common.BufferLease;
+import common.BufferPool;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * Writes responses to a connection, one at a time.
+ * <p>
+ * The header block is serialized once into a direct buffer leased from the shared
+ * {@link BufferPool} for as long as it is unwritten; status line, Date and the other fixed lines
+ * are copied from pre-encoded arrays.
+ * It goes out together with the buffer-backed body parts behind it in one gathering write, so a
+ * small cached response costs a single syscall. Whatever the socket doesn't take stays in the
+ * buffers' positions and is continued on the next writable event.
+ */
 public class HttpResponseWriter {
 
-    private final Charset charset = StandardCharsets.UTF_8;
-    private final CharsetEncoder encoder = charset.newEncoder();
+    private static final int MIN_HEADER_BUFFER_BYTES = 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+    // most responses have one or two parts, multipart ranges a few more
+    private static final int MAX_GATHERED_BUFFERS = 16;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    // Connection, Keep-Alive, Server and Content-Length lines at their longest
+    private static final int FIXED_LINES_MAX_BYTES = HttpResponse.CONNECTION_KEEP_ALIVE_LINE.length
+            + HttpResponse.KEEP_ALIVE_TIMEOUT_PREFIX.length + HttpResponse.KEEP_ALIVE_MAX_PREFIX.length
+            + HttpResponse.SERVER_LINE.length + HttpResponse.CONTENT_LENGTH_PREFIX.length + 3 * 20 + 2 * CRLF.length;
+
+    private final BufferPool pool = BufferPool.shared();
+    // leased while a header block is being written, in read mode
+    private BufferLease headerLease;
+    private ByteBuffer headerBuffer = EMPTY;
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
-    public void writeHeaders(WritableByteChannel channel, HttpResponse response) throws IOException {
-        if (response.wroteHeaders()) {
-            return;
+    /**
+     * Writes as much of the response as the channel accepts right now and returns how many bytes that was.
+     * Call again on the next writable event while the response has pending content.
+     */
+    public long write(WritableByteChannel channel, HttpResponse response) throws IOException {
+        if (!response.headersEncoded()) {
+            encodeHeaders(response);
+            response.markHeadersEncoded();
         }
 
-        String prefix = response.generatePrefix();
-        writeLine(channel, prefix);
+        Deque<ContentSource> sources = response.getContentSources();
+        long total = 0;
+        while (headerBuffer.hasRemaining() || !sources.isEmpty()) {
+            if (headerLease != null && !headerBuffer.hasRemaining()) {
+                release();
+            }
+            ContentSource head = sources.peek();
+            long written;
+            boolean progress;
+            if (headerBuffer.hasRemaining() || head.buffer() != null) {
+                written = writeBuffers(channel, sources);
+                progress = written > 0;
+            } else {
+                written = head.writeTo(channel);
+                progress = written > 0;
+                if (!head.hasRemaining()) {
+                    sources.poll();
+                    head.closeSilently();
+                    progress = true;
+                }
+            }
+            total += written;
+            if (!progress) {
+                // socket buffer is full, continue on the next writable event
+                return total;
+            }
+        }
+        release();
+        return total;
+    }
 
-        Set<Map.Entry<String, String>> headers = response.getHeaders().entrySet();
-        for (Map.Entry<String, String> header : headers) {
-            writeLine(channel, header.getKey() + ": " + header.getValue());
+    /** True while part of the header block is still unwritten. */
+    public boolean hasPendingHeaders() {
+        return headerBuffer.hasRemaining();
+    }
+
+    /** Gives the header buffer back to the pool, dropping any unwritten headers. */
+    public void release() {
+        if (headerLease != null) {
+            headerLease.release();
+            headerLease = null;
+            headerBuffer = EMPTY;
+        }
+    }
+
+    // gathers the rest of the header block and the leading buffer-backed sources into one write
+    private long writeBuffers(WritableByteChannel channel, Deque<ContentSource> sources) throws IOException {
+        int count = 0;
+        if (headerBuffer.hasRemaining()) {
+            gathered[count++] = headerBuffer;
+        }
+        Iterator<ContentSource> iterator = sources.iterator();
+        while (count < MAX_GATHERED_BUFFERS && iterator.hasNext()) {
+            ByteBuffer buffer = iterator.next().buffer();
+            if (buffer == null) {
+                break;
+            }
+            gathered[count++] = buffer;
+        }
+
+        long written;
+        if (channel instanceof GatheringByteChannel gathering) {
+            written = gathering.write(gathered, 0, count);
+        } else {
+            written = 0;
+            for (int i = 0; i < count; i++) {
+                written += channel.write(gathered[i]);
+                if (gathered[i].hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            gathered[i] = null;
         }
-        writeLine(channel, "");
 
-        response.markAsWroteHeaders();
+        ContentSource source;
+        while ((source = sources.peek()) != null && source.buffer() != null && !source.hasRemaining()) {
+            sources.poll();
+            source.closeSilently();
+        }
+        return written;
     }
 
-    public void writeContent(WritableByteChannel channel, HttpResponse response) throws IOException {
-        if (!response.hasPendingContent()) {
-            return;
+    // the fixed part comes from pre-encoded lines, only the response-specific headers are encoded here
+    private void encodeHeaders(HttpResponse response) {
+        Map<String, String> headers = response.getHeaders();
+        byte[] statusLine = response.getStatus().statusLine();
+        byte[] dateLine = HttpClock.dateHeaderLine();
+        byte[] renderedHeaders = response.getRenderedHeaders();
+
+        int length = statusLine.length + dateLine.length + FIXED_LINES_MAX_BYTES + CRLF.length;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            length += header.getKey().length() + header.getValue().length() + HEADER_SEPARATOR.length + CRLF.length;
         }
+        if (renderedHeaders != null) {
+            length += renderedHeaders.length;
+        }
+        release();
+        headerLease = pool.acquire(Math.max(length, MIN_HEADER_BUFFER_BYTES));
+        headerBuffer = headerLease.buffer();
 
-        byte[] content = response.flushPendingContent();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(content);
-        channel.write(byteBuffer);
+        ByteBuffer buffer = headerBuffer;
+        buffer.put(statusLine).put(dateLine);
+        if (response.isKeepAlive()) {
+            buffer.put(HttpResponse.CONNECTION_KEEP_ALIVE_LINE).put(HttpResponse.KEEP_ALIVE_TIMEOUT_PREFIX);
+            putDecimal(buffer, response.getKeepAliveTimeoutSeconds());
+            buffer.put(HttpResponse.KEEP_ALIVE_MAX_PREFIX);
+            putDecimal(buffer, response.getKeepAliveMaxRequests());
+            buffer.put(CRLF);
+        } else {
+            buffer.put(HttpResponse.CONNECTION_CLOSE_LINE);
+        }
+        if (response.hasDefaultHeaders()) {
+            buffer.put(HttpResponse.SERVER_LINE).put(HttpResponse.CONTENT_LENGTH_PREFIX);
+            putDecimal(buffer, response.getContentLength());
+            buffer.put(CRLF);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            putLatin1(buffer, header.getKey());
+            buffer.put(HEADER_SEPARATOR);
+            putLatin1(buffer, header.getValue());
+            buffer.put(CRLF);
+        }
+        if (renderedHeaders != null) {
+            buffer.put(renderedHeaders);
+        }
+        buffer.put(CRLF).flip();
     }
 
-    private void writeLine(WritableByteChannel channel, String line) throws IOException {
-        CharBuffer charBuffer = CharBuffer.wrap(line + "\r\n");
-        ByteBuffer byteBuffer = encoder.encode(charBuffer);
-        channel.write(byteBuffer);
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    // header values are ISO-8859-1 by definition; anything beyond it can't be sent as is
+    static void putLatin1(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            buffer.put(c < 0x100 ? (byte) c : (byte) '?');
+        }
     }
 
-}
\ No newline at end of file
+}
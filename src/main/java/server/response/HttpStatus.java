@@ -1,19 +1,35 @@
 package server.response;
 
+import java.nio.charset.StandardCharsets;
+
 enum HttpStatus {
 
+    CONTINUE(100, "Continue"),
     SUCCESS(200, "OK"),
+    PARTIAL_CONTENT(206, "Partial Content"),
+    NOT_MODIFIED(304, "Not Modified"),
     BAD_REQUEST(400, "Bad Request"),
     REQUEST_TIMEOUT(408, "Request Timeout"),
+    PRECONDITION_FAILED(412, "Precondition Failed"),
     TOO_MANY_REQUESTS(429, "Too Many Requests"),
-    NOT_FOUND(404, "Not Found");
+    NOT_FOUND(404, "Not Found"),
+    METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
+    RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable");
 
     public final int code;
     public final String message;
+    // "HTTP/1.1 <code> <message>\r\n", encoded once
+    private final byte[] statusLine;
 
     HttpStatus(int code, String message) {
         this.code = code;
         this.message = message;
+        this.statusLine = ("HTTP/1.1 " + code + " " + message + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** The encoded status line including its CRLF. Shared, must not be modified. */
+    byte[] statusLine() {
+        return statusLine;
     }
 
 }
\ No newline at end of file
@@ -1,22 +1,36 @@
 package server2;
 
 import actions.EventBus;
+import common.AdmissionControl;
+import common.BufferLease;
+import common.BufferPool;
+import common.TimerWheel;
 import hardware.Context;
+import hardware.CpuAffinity;
 import logger.Logger;
 
 import javax.net.ssl.*;
 import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static server2.ServerEvents.*;
 
@@ -26,9 +40,54 @@ public final class AsyncTlsHttpServer {
 
     private static final ConcurrentHashMap<String, ServerHandle> SERVERS = new ConcurrentHashMap<>();
 
+    // connection buffers are direct and pooled, shared with the NIO server
+    private static final BufferPool POOL = BufferPool.shared();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+    // every step of a connection has to finish in time, or the connection is closed
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000L;
+    private static final long REQUEST_HEAD_TIMEOUT_MILLIS = 10_000L;
+    private static final long RESPONSE_WRITE_TIMEOUT_MILLIS = 30_000L;
+    private static final long KEEP_ALIVE_IDLE_TIMEOUT_MILLIS = 15_000L;
+    private static final int KEEP_ALIVE_MAX_REQUESTS = 100;
+    // how long a stopping server lets its requests in flight finish unless the stop event says otherwise
+    private static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30_000L;
+    private static final long DRAIN_POLL_MILLIS = 50L;
+    private static final int MAX_REQUEST_HEAD_BYTES = 32 * 1024;
+    // free space a plain connection reads into
+    private static final int PLAIN_READ_BYTES = 4096;
+    private static final long TIMER_TICK_MILLIS = 250L;
+    private static final TimerWheel TIMERS = new TimerWheel(TIMER_TICK_MILLIS);
+    private static final ScheduledExecutorService TIMER_TICKER = startTimerTicker();
+
     private static final ExecutorService IO_POOL =
             Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    // servers that don't ask for a channel group of their own share this one, which is never shut down
     private static final AsynchronousChannelGroup GROUP = createGroup(IO_POOL);
+    // groups named in a ChannelGroupConfig, guarded by the map itself
+    private static final Map<String, GroupLease> NAMED_GROUPS = new HashMap<>();
+    // a stopping server's group finishes the connections it still has for this long, then they are cut off
+    private static final long GROUP_DRAIN_TIMEOUT_MILLIS = RESPONSE_WRITE_TIMEOUT_MILLIS;
+    // how long a new channel group's threads get to report their ids for pinning
+    private static final long GROUP_START_TIMEOUT_MILLIS = 1_000L;
+
+    // SSLEngine delegated tasks (key exchange, signatures) run here, not on the I/O threads, so a burst of
+    // handshakes can't stall reads and writes of established connections. When the queue is full the
+    // handshake fails instead of falling back to an I/O thread.
+    private static final int HANDSHAKE_QUEUE_CAPACITY = 1024;
+    private static final ExecutorService HANDSHAKE_POOL = createHandshakePool();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static ExecutorService createHandshakePool() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_CAPACITY), r -> {
+                    Thread t = new Thread(r, "tls-handshake-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
 
     private static AsynchronousChannelGroup createGroup(ExecutorService pool) {
         try {
@@ -38,6 +97,118 @@ public final class AsyncTlsHttpServer {
         }
     }
 
+    /** A server's hold on a channel group of its own or one it shares by name. */
+    private static final class GroupLease {
+        private final String label;
+        private final ChannelGroupConfig config;
+        private final AsynchronousChannelGroup group;
+        // servers holding a named group, guarded by NAMED_GROUPS
+        private int users = 1;
+
+        private GroupLease(String label, ChannelGroupConfig config, AsynchronousChannelGroup group) {
+            this.label = label;
+            this.config = config;
+            this.group = group;
+        }
+    }
+
+    /** The group a server asked for: its own, or the named one, created by the first server naming it. */
+    private static GroupLease acquireGroup(ServerStartEvent e) throws IOException {
+        ChannelGroupConfig config = e.channelGroup();
+        if (config.name() == null) {
+            return new GroupLease(e.id(), config, createGroup(e.id(), config));
+        }
+        synchronized (NAMED_GROUPS) {
+            GroupLease lease = NAMED_GROUPS.get(config.name());
+            if (lease == null) {
+                lease = new GroupLease(config.name(), config, createGroup(config.name(), config));
+                NAMED_GROUPS.put(config.name(), lease);
+            } else if (lease.config.threads() != config.threads() || !Arrays.equals(lease.config.cpus(), config.cpus())) {
+                throw new IllegalArgumentException("Channel group '" + config.name()
+                        + "' is already running with a different configuration");
+            } else {
+                lease.users++;
+            }
+            return lease;
+        }
+    }
+
+    /**
+     * Gives up a server's hold on its group. The last one out shuts the group down: connections still open
+     * get to finish until the drain timeout, then they are closed and the threads end.
+     */
+    private static void releaseGroup(GroupLease lease) {
+        if (lease.config.name() != null) {
+            synchronized (NAMED_GROUPS) {
+                if (--lease.users > 0) return;
+                NAMED_GROUPS.remove(lease.config.name());
+            }
+        }
+        lease.group.shutdown();
+        try {
+            if (!lease.group.awaitTermination(GROUP_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Channel group " + lease.label + " did not drain in time, closing its connections");
+                lease.group.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            try { lease.group.shutdownNow(); } catch (IOException ignored) {}
+        } catch (IOException ex) {
+            LOGGER.error("Error while shutting down channel group " + lease.label, ex);
+        }
+    }
+
+    /**
+     * I/O threads named after the group. With CPUs configured, each thread reports its kernel id as it
+     * starts, and all of them are pinned here in one go, so the I/O threads never wait on taskset.
+     */
+    private static AsynchronousChannelGroup createGroup(String label, ChannelGroupConfig config) throws IOException {
+        int[] cpus = config.cpus();
+        int threads = config.threads();
+        AtomicInteger count = new AtomicInteger();
+        long[] threadIds = new long[threads];
+        CountDownLatch started = new CountDownLatch(threads);
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threads, r -> {
+            int index = count.getAndIncrement();
+            return new Thread(() -> {
+                // a thread replacing one that died isn't pinned
+                if (cpus.length > 0 && index < threads) {
+                    threadIds[index] = CpuAffinity.currentThreadId();
+                    started.countDown();
+                }
+                r.run();
+            }, "aio-" + label + "-" + (index + 1));
+        });
+        if (cpus.length > 0 && !pinGroup(threadIds, cpus, started)) {
+            LOGGER.warn("Could not pin the I/O threads of channel group " + label
+                    + " to CPUs " + Arrays.toString(cpus));
+        }
+        return group;
+    }
+
+    // the fixed pool starts its threads right away, so they have all reported by the time it is returned
+    private static boolean pinGroup(long[] threadIds, int[] cpus, CountDownLatch started) {
+        try {
+            if (!started.await(GROUP_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return CpuAffinity.pinThreads(threadIds, cpus);
+    }
+
+    private static ScheduledExecutorService startTimerTicker() {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "async-server-timers");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(TIMERS::advance, TIMER_TICK_MILLIS, TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        return ticker;
+    }
+
     // --- Event handlers ---
 
     public static void onServerStart(ServerStartEvent e) {
@@ -76,8 +247,9 @@ public final class AsyncTlsHttpServer {
             return;
         }
 
+        long drainMillis = e.drainTimeout() != null ? e.drainTimeout().toMillis() : DEFAULT_DRAIN_TIMEOUT_MILLIS;
         Context.supply(() -> {
-            h.stop();
+            h.stop(drainMillis);
             return null;
         }).thenAccept(v -> {
             EventBus.send(new ServerStoppedEvent(e.id()));
@@ -88,11 +260,60 @@ public final class AsyncTlsHttpServer {
         });
     }
 
+    public static void onServerRestart(ServerRestartEvent e) {
+        Objects.requireNonNull(e, "event");
+        ServerStartEvent next = e.next();
+        Objects.requireNonNull(next.id(), "id");
+
+        ServerHandle h = SERVERS.get(e.id());
+        if (h == null) {
+            LOGGER.warn("No server found to restart: " + e.id());
+            return;
+        }
+        if (!next.id().equals(e.id()) && SERVERS.containsKey(next.id())) {
+            LOGGER.warn("Server already running: " + next.id());
+            return;
+        }
+
+        long drainMillis = e.drainTimeout() != null ? e.drainTimeout().toMillis() : DEFAULT_DRAIN_TIMEOUT_MILLIS;
+        Context.supplyThrowing(() -> h.handOver(next))
+                .thenAccept(successor -> {
+                    if (!next.id().equals(e.id())) {
+                        SERVERS.remove(e.id(), h);
+                    }
+                    SERVERS.put(next.id(), successor);
+                    // it listens where the previous instance did
+                    EventBus.send(new ServerStartedEvent(next.id(), h.cfg.host(), h.cfg.port(), next.tlsEnabled()));
+                    LOGGER.info("Restarted server [" + e.id() + "] as [" + next.id() + "]");
+
+                    Context.supply(() -> {
+                        h.drain(drainMillis);
+                        return null;
+                    }).thenAccept(v -> {
+                        if (!next.id().equals(e.id())) {
+                            EventBus.send(new ServerStoppedEvent(e.id()));
+                        }
+                        LOGGER.info("Drained the previous instance of server [" + e.id() + "]");
+                    });
+                })
+                .exceptionally(ex -> {
+                    EventBus.send(new ServerFailedEvent(next.id(), ex));
+                    LOGGER.error("Failed to restart server [" + e.id() + "]", ex);
+                    return null;
+                });
+    }
+
     // --- Public convenience APIs (optional) ---
     public static boolean isRunning(String id) {
         return SERVERS.containsKey(id);
     }
 
+    /** Handshake counts of a running TLS server, or null if there is none with that id. */
+    public static TlsSessionStats tlsSessionStats(String id) {
+        ServerHandle h = SERVERS.get(id);
+        return h != null && h.cfg.tlsEnabled() ? h.handshakes.snapshot() : null;
+    }
+
     public static void stopAll() {
         SERVERS.keySet().forEach(id -> EventBus.send(new ServerStopEvent(id)));
     }
@@ -100,45 +321,90 @@ public final class AsyncTlsHttpServer {
     // --- Server startup ---
 
     private static ServerHandle startServerInternal(ServerStartEvent e) throws Exception {
-        SSLContext sslContext = null;
+        SSLContext sslContext = sslContext(e);
+        // limits hold for the server as a whole, whichever listener accepted the connection
+        AdmissionControl admission = new AdmissionControl(e.admissionLimits());
+
+        if (e.mode() == ConnectionMode.BLOCKING) {
+            Listeners listeners = new Listeners(bindListeners(e, ServerSocketChannel::open));
+            ServerHandle handle = new ServerHandle(e, sslContext, admission, listeners, null);
+            for (NetworkChannel listener : listeners.channels) {
+                Context.supply(() -> {
+                    blockingAcceptLoop((ServerSocketChannel) listener, listeners);
+                    return null;
+                });
+            }
+            return handle;
+        }
 
-        if (e.tlsEnabled()) {
-            var tlsCfg = Objects.requireNonNull(e.tls(), "tls config required when tlsEnabled=true");
-            sslContext = SslContexts.fromPkcs12(
-                    Objects.requireNonNull(tlsCfg.pkcs12Path(), "pkcs12Path"),
-                    Objects.requireNonNull(tlsCfg.pkcs12Password(), "pkcs12Password")
-            );
+        GroupLease lease = e.channelGroup() != null ? acquireGroup(e) : null;
+        AsynchronousChannelGroup group = lease != null ? lease.group : GROUP;
+        Listeners listeners;
+        try {
+            listeners = new Listeners(bindListeners(e, () -> AsynchronousServerSocketChannel.open(group)));
+        } catch (IOException | RuntimeException ex) {
+            if (lease != null) releaseGroup(lease);
+            throw ex;
         }
+        ServerHandle handle = new ServerHandle(e, sslContext, admission, listeners, lease);
+        for (NetworkChannel listener : listeners.channels) {
+            acceptLoop((AsynchronousServerSocketChannel) listener, listeners);
+        }
+        return handle;
+    }
 
-        AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(GROUP)
-                .bind(new InetSocketAddress(e.host(), e.port()));
+    private static SSLContext sslContext(ServerStartEvent e) throws Exception {
+        if (!e.tlsEnabled()) {
+            return null;
+        }
+        return SslContexts.forServer(Objects.requireNonNull(e.tls(), "tls config required when tlsEnabled=true"));
+    }
 
-        acceptLoop(server, sslContext, e);
+    @FunctionalInterface
+    private interface ListenerFactory<T extends NetworkChannel> {
+        T open() throws IOException;
+    }
 
-        return new ServerHandle(e.id(), server);
+    /**
+     * Opens one listening socket per acceptor. More than one are bound with SO_REUSEPORT, so the kernel
+     * balances incoming connections over their accept loops instead of funnelling them through one.
+     */
+    private static <T extends NetworkChannel> List<T> bindListeners(ServerStartEvent e, ListenerFactory<T> factory)
+            throws IOException {
+        int acceptors = e.acceptors();
+        List<T> listeners = new ArrayList<>(acceptors);
+        try {
+            InetSocketAddress address = new InetSocketAddress(e.host(), e.port());
+            for (int i = 0; i < acceptors; i++) {
+                T listener = factory.open();
+                listeners.add(listener);
+                if (acceptors > 1 && !listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    LOGGER.warn("SO_REUSEPORT is not supported, server [" + e.id() + "] uses a single acceptor");
+                    acceptors = 1;
+                }
+                if (acceptors > 1) {
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listener.bind(address);
+                // an ephemeral port is chosen by the first bind, the others have to join it
+                address = (InetSocketAddress) listener.getLocalAddress();
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (T listener : listeners) {
+                try { listener.close(); } catch (Exception ignored) {}
+            }
+            throw ex;
+        }
+        return listeners;
     }
 
-    private static void acceptLoop(
-            AsynchronousServerSocketChannel server,
-            SSLContext sslContextOrNull,
-            ServerStartEvent cfg
-    ) {
+    // each accepted connection goes to whichever server instance owns the listeners at the time
+    private static void acceptLoop(AsynchronousServerSocketChannel server, Listeners listeners) {
         server.accept(null, new CompletionHandler<>() {
             @Override public void completed(AsynchronousSocketChannel ch, Object att) {
                 // accept next ASAP
                 server.accept(null, this);
-
-                try {
-                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
-                } catch (Exception exception) {
-                    LOGGER.warn("Failed to set TCP_NODELAY option", exception);
-                }
-
-                if (cfg.tlsEnabled()) {
-                    new TlsConnection(ch, sslContextOrNull, cfg).start();
-                } else {
-                    new PlainConnection(ch).start();
-                }
+                listeners.owner.serve(ch);
             }
 
             @Override public void failed(Throwable exc, Object att) {
@@ -151,473 +417,1504 @@ public final class AsyncTlsHttpServer {
         });
     }
 
+    // runs on a virtual thread of its own until the listener is closed
+    private static void blockingAcceptLoop(ServerSocketChannel server, Listeners listeners) {
+        while (server.isOpen()) {
+            SocketChannel ch;
+            try {
+                ch = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Accept failed: " + e.getMessage(), e);
+                continue;
+            }
+            listeners.owner.serve(ch);
+        }
+    }
+
+    // what a server without a registered handler answers
+    private static HttpHandler greeting(ServerStartEvent e) {
+        return request -> {
+            String requestLine = request.method() + " " + request.target() + " " + request.version();
+            String text = e.tlsEnabled()
+                    ? "Hello TLS!\nserver=" + e.id() + "\nYou said: " + requestLine + "\n"
+                    : "Hello HTTP!\nYou said: " + requestLine + "\n";
+            return Response.text(200, text).completed();
+        };
+    }
+
+    /** Runs the handler; a failure, thrown or in the returned stage, is answered with 500. */
+    static CompletionStage<Response> invoke(HttpHandler handler, Request request) {
+        CompletionStage<Response> response;
+        try {
+            response = handler.handle(request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.handle((r, t) -> {
+            if (t != null || r == null) {
+                LOGGER.error("Handler failed for " + request.method() + " " + request.target(), t);
+                return Response.text(500, "Internal server error\n");
+            }
+            return r;
+        });
+    }
+
+    private static InetAddress remoteAddress(AsynchronousSocketChannel ch) {
+        InetSocketAddress peer = peer(ch);
+        return peer != null ? peer.getAddress() : null;
+    }
+
+    private static InetSocketAddress peer(AsynchronousSocketChannel ch) {
+        try {
+            return ch.getRemoteAddress() instanceof InetSocketAddress inet ? inet : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** A server engine for the connection, set up as the TLS config asks. */
+    private static SSLEngine createEngine(InetSocketAddress peer, SSLContext sslContext, ServerStartEvent cfg) {
+        Objects.requireNonNull(sslContext, "sslContext");
+        // the peer's address keys the session cache, so a reconnecting client can resume
+        SSLEngine engine = peer != null
+                ? sslContext.createSSLEngine(peer.getHostString(), peer.getPort())
+                : sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+
+        var tlsCfg = Objects.requireNonNull(cfg.tls(), "tls config");
+        engine.setNeedClientAuth(tlsCfg.needClientAuth());
+
+        String[] protos = tlsCfg.enabledProtocols();
+        if (protos != null && protos.length > 0) {
+            engine.setEnabledProtocols(protos);
+        }
+        // the first of ours the client also offers wins
+        SSLParameters params = engine.getSSLParameters();
+        params.setApplicationProtocols(tlsCfg.applicationProtocols());
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    private static InetSocketAddress peer(SocketChannel ch) {
+        try {
+            return ch.getRemoteAddress() instanceof InetSocketAddress inet ? inet : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // plain connections get the pre-encoded response, TLS ones can't be answered before a handshake
+    private static void reject(AsynchronousSocketChannel ch, AdmissionControl.Rejection rejection, boolean tls) {
+        LOGGER.warn("Rejecting connection from " + remoteAddress(ch) + ": " + rejection);
+        if (tls) {
+            try { ch.close(); } catch (Exception ignored) {}
+            return;
+        }
+        ch.write(rejection.response(), null, new CompletionHandler<>() {
+            @Override public void completed(Integer n, Object att) {
+                try { ch.close(); } catch (Exception ignored) {}
+            }
+            @Override public void failed(Throwable exc, Object att) {
+                try { ch.close(); } catch (Exception ignored) {}
+            }
+        });
+    }
+
+    // same as above, blocking on a virtual thread
+    private static void reject(SocketChannel ch, InetAddress address, AdmissionControl.Rejection rejection, boolean tls) {
+        LOGGER.warn("Rejecting connection from " + address + ": " + rejection);
+        try (ch) {
+            if (!tls) {
+                ByteBuffer response = rejection.response();
+                while (response.hasRemaining()) {
+                    ch.write(response);
+                }
+            }
+        } catch (IOException ignored) {}
+    }
+
     // --- Server handle ---
+
+    /** A server's listening sockets; a restart hands them to the next instance by making it the owner. */
+    private static final class Listeners {
+        private final List<NetworkChannel> channels;
+        private volatile ServerHandle owner;
+
+        private Listeners(List<? extends NetworkChannel> channels) {
+            this.channels = List.copyOf(channels);
+        }
+    }
+
+    /** A live connection as its server sees it when it stops. */
+    private interface Drainable {
+
+        /**
+         * Closes once the request in flight, if any, is answered, with close_notify over TLS. A connection
+         * waiting for its next request closes right away, while a new one still gets to send its first, and
+         * an HTTP/2 connection takes no new streams. Safe to call from any thread, any number of times.
+         */
+        void drain();
+    }
+
     private static final class ServerHandle {
         private final String id;
-        private final AsynchronousServerSocketChannel server;
+        private final ServerStartEvent cfg;
+        // null for plain servers
+        private final SSLContext sslContext;
+        private final AdmissionControl admission;
+        private final HttpHandler handler;
+        private final HandshakeCounters handshakes = new HandshakeCounters();
+        private final Listeners listeners;
+        // accepted and not closed yet
+        private final Map<Channel, Drainable> connections = new ConcurrentHashMap<>();
+        // null on the shared default group and for blocking servers; a restart moves it on to the next instance
+        private GroupLease group;
+        private volatile boolean draining;
+        // stopped or handed over, either way the listeners aren't this instance's any more
         private final AtomicBoolean stopped = new AtomicBoolean(false);
 
-        private ServerHandle(String id, AsynchronousServerSocketChannel server) {
-            this.id = id;
-            this.server = server;
+        private ServerHandle(ServerStartEvent cfg, SSLContext sslContext, AdmissionControl admission,
+                             Listeners listeners, GroupLease group) {
+            this.id = cfg.id();
+            this.cfg = cfg;
+            this.sslContext = sslContext;
+            this.admission = admission;
+            this.handler = cfg.handler() != null ? cfg.handler() : greeting(cfg);
+            this.listeners = listeners;
+            this.group = group;
+            listeners.owner = this;
         }
 
-        void stop() {
-            if (!stopped.compareAndSet(false, true)) return;
-            try { server.close(); } catch (Exception ignored) {}
+        void serve(AsynchronousSocketChannel ch) {
+            InetAddress address = remoteAddress(ch);
+            AdmissionControl.Rejection rejection = admission.tryAdmit(address);
+            if (rejection != null) {
+                reject(ch, rejection, cfg.tlsEnabled());
+                return;
+            }
+            Runnable onClose = () -> {
+                connections.remove(ch);
+                admission.release(address);
+            };
+
+            try {
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (Exception exception) {
+                LOGGER.warn("Failed to set TCP_NODELAY option", exception);
+            }
+
+            try {
+                Connection connection = cfg.tlsEnabled()
+                        ? new TlsConnection(ch, sslContext, cfg, handler, handshakes, onClose)
+                        : new PlainConnection(ch, handler, onClose);
+                track(ch, connection);
+                connection.start();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Could not set up connection", ex);
+                try { ch.close(); } catch (Exception ignored) {}
+                onClose.run();
+            }
         }
-    }
 
-    static final class TlsConnection {
-        private final AsynchronousSocketChannel ch;
-        private final SSLEngine engine;
+        void serve(SocketChannel ch) {
+            InetSocketAddress peer = peer(ch);
+            InetAddress address = peer != null ? peer.getAddress() : null;
+            AdmissionControl.Rejection rejection = admission.tryAdmit(address);
+            if (rejection != null) {
+                Context.supply(() -> {
+                    reject(ch, address, rejection, cfg.tlsEnabled());
+                    return null;
+                });
+                return;
+            }
+            Runnable onClose = () -> {
+                connections.remove(ch);
+                admission.release(address);
+            };
 
-        private ByteBuffer netIn;
-        private ByteBuffer netOut;
+            try {
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (Exception exception) {
+                LOGGER.warn("Failed to set TCP_NODELAY option", exception);
+            }
 
-        private final int packetBufSize;
-        private final int appBufSize;
+            try {
+                BlockingConnection connection = cfg.tlsEnabled()
+                        ? new BlockingConnection(ch, createEngine(peer, sslContext, cfg), handler, handshakes, onClose)
+                        : new BlockingConnection(ch, null, handler, handshakes, onClose);
+                track(ch, connection);
+                Context.supply(() -> {
+                    connection.run();
+                    return null;
+                });
+            } catch (RuntimeException ex) {
+                LOGGER.error("Could not set up connection", ex);
+                try { ch.close(); } catch (Exception ignored) {}
+                onClose.run();
+            }
+        }
 
-        private final Serial serial = new Serial();
-        private final ServerStartEvent cfg;
+        // registered before it starts; one accepted while the drain was starting drains right away
+        private void track(Channel ch, Drainable connection) {
+            connections.put(ch, connection);
+            if (draining) {
+                connection.drain();
+            }
+        }
 
-        TlsConnection(AsynchronousSocketChannel ch, SSLContext sslContext, ServerStartEvent cfg) {
-            this.ch = Objects.requireNonNull(ch, "ch");
-            this.cfg = Objects.requireNonNull(cfg, "cfg");
+        /**
+         * The next instance, which takes over the listeners, the channel group and the admission limits.
+         * This one keeps its connections and is left to {@link #drain}.
+         */
+        ServerHandle handOver(ServerStartEvent next) throws Exception {
+            if (next.mode() != cfg.mode()) {
+                throw new IllegalArgumentException("A restarted server keeps its connection mode");
+            }
+            if (!sameGroup(cfg.channelGroup(), next.channelGroup())) {
+                throw new IllegalArgumentException("A restarted server keeps its channel group");
+            }
+            if (!next.admissionLimits().equals(cfg.admissionLimits())) {
+                throw new IllegalArgumentException("A restarted server keeps its admission limits");
+            }
+            SSLContext nextContext = sslContext(next);
+            if (!stopped.compareAndSet(false, true)) {
+                throw new IllegalStateException("Server [" + id + "] is stopping");
+            }
+            ServerHandle successor = new ServerHandle(next, nextContext, admission, listeners, group);
+            group = null;
+            return successor;
+        }
 
-            Objects.requireNonNull(sslContext, "sslContext");
-            this.engine = sslContext.createSSLEngine();
-            this.engine.setUseClientMode(false);
+        /** Closes the listeners, drains the connections, then lets go of the channel group. */
+        void stop(long drainMillis) {
+            if (!stopped.compareAndSet(false, true)) return;
+            for (NetworkChannel listener : listeners.channels) {
+                try { listener.close(); } catch (Exception ignored) {}
+            }
+            drain(drainMillis);
+            if (group != null) {
+                releaseGroup(group);
+            }
+        }
 
-            var tlsCfg = Objects.requireNonNull(cfg.tls(), "tls config");
-            this.engine.setNeedClientAuth(tlsCfg.needClientAuth());
+        /**
+         * Asks every connection to {@link Drainable#drain} and waits for them to close. Those still open
+         * when the timeout passes are closed without further ado.
+         */
+        void drain(long timeoutMillis) {
+            draining = true;
+            connections.values().forEach(Drainable::drain);
 
-            String[] protos = tlsCfg.enabledProtocols();
-            if (protos != null && protos.length > 0) {
-                engine.setEnabledProtocols(protos);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (!connections.isEmpty() && System.nanoTime() - deadline < 0) {
+                    Thread.sleep(DRAIN_POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!connections.isEmpty()) {
+                LOGGER.warn("Closing " + connections.size() + " connections of server [" + id
+                        + "] still open after " + timeoutMillis + " ms");
+                for (Channel ch : connections.keySet()) {
+                    try { ch.close(); } catch (Exception ignored) {}
+                }
             }
+        }
+    }
 
-            SSLSession session = engine.getSession();
-            this.packetBufSize = session.getPacketBufferSize();
-            this.appBufSize = session.getApplicationBufferSize();
+    private static boolean sameGroup(ChannelGroupConfig a, ChannelGroupConfig b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Objects.equals(a.name(), b.name()) && a.threads() == b.threads() && Arrays.equals(a.cpus(), b.cpus());
+    }
+
+    // runs on the handshake pool, whose platform threads can measure their CPU time
+    private static void runTasks(SSLEngine engine, HandshakeCounters handshakes) {
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) task.run();
+        handshakes.taskCpuNanos.add(THREADS.getCurrentThreadCpuTime() - cpuStart);
+    }
+
+    /** One step of a connection's timeout, re-armed for every step; when it passes the channel is closed. */
+    private static final class Deadline implements Runnable {
+        private final Channel ch;
+        private TimerWheel.Timeout timeout;
+        private String step;
+        private long millis;
 
-            this.netIn = ByteBuffer.allocate(packetBufSize);
-            this.netOut = ByteBuffer.allocate(packetBufSize);
+        Deadline(Channel ch) {
+            this.ch = ch;
         }
 
-        void start() {
-            serial.submit(() ->
-                    handshake()
-                            .thenCompose(v -> readHttpHeaders())
-                            .thenCompose(this::writeHelloResponse)
-                            .thenCompose(v -> closeGracefully())
-            ).whenComplete((v, t) -> {
-                if (t != null) LOGGER.error("TLS connection error", t);
-                closeNow();
-            });
+        // replaces the step armed before, if it hasn't passed yet
+        void arm(long millis, String step) {
+            cancel();
+            this.millis = millis;
+            this.step = step;
+            timeout = TIMERS.schedule(millis, this);
         }
 
-        private CompletionStage<Void> handshake() {
-            try {
-                engine.beginHandshake();
-            } catch (SSLException e) {
-                throw new RuntimeException(e);
+        void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
             }
-            return handshakeLoop();
         }
 
-        private CompletionStage<Void> handshakeLoop() {
-            SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+        @Override public void run() {
+            LOGGER.warn("Closing connection: " + step + " took longer than " + millis + " ms");
+            try { ch.close(); } catch (Exception ignored) {}
+        }
+    }
 
-            return switch (hs) {
-                case FINISHED, NOT_HANDSHAKING -> CompletableFuture.completedFuture(null);
+    private static final class HandshakeCounters {
+        private final LongAdder full = new LongAdder();
+        private final LongAdder resumed = new LongAdder();
+        private final LongAdder taskCpuNanos = new LongAdder();
+
+        // a resumed session was created by an earlier handshake
+        void count(SSLEngine engine, long handshakeStartedMillis) {
+            if (engine.getSession().getCreationTime() < handshakeStartedMillis) {
+                resumed.increment();
+            } else {
+                full.increment();
+            }
+        }
 
-                case NEED_TASK -> {
-                    runDelegatedTasks();
-                    yield handshakeLoop();
-                }
+        TlsSessionStats snapshot() {
+            return new TlsSessionStats(full.sum(), resumed.sum(), taskCpuNanos.sum());
+        }
+    }
 
-                case NEED_WRAP -> {
-                    netOut.clear();
-                    SSLEngineResult r;
-                    try {
-                        r = engine.wrap(ByteBuffer.allocate(0), netOut);
-                    } catch (SSLException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    netOut.flip();
-                    yield writeFully(netOut).thenCompose(v -> handshakeLoop());
+    /**
+     * What both connection types share: a state machine serving HTTP/1.1 requests one after the other,
+     * driven by one read and one write {@link CompletionHandler} that live as long as the connection, so
+     * the plumbing doesn't allocate per read or write. Only the handler's response stage and the pieces
+     * of a streamed body come as stages. Over HTTP/2, reads and writes run side by side, each on its own
+     * handler, and {@link Http2Connection} drives them through its stage-based transport.
+     */
+    private abstract static class Connection implements Drainable {
+
+        enum State { HANDSHAKING, READING, WRITING, HTTP2, CLOSING }
+
+        final AsynchronousSocketChannel ch;
+        final HttpHandler handler;
+        private final Runnable onClose;
+        private final String kind;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // not parsed yet, may already hold the next pipelined request
+        final InputBuffer input;
+        // changes only between reads and writes, which order it; fixed while HTTP/2 reads and writes overlap.
+        // Volatile for a drain, which looks at it from another thread.
+        volatile State state;
+        private volatile boolean draining;
+        private volatile Http2Connection http2;
+
+        final CompletionHandler<Integer, Void> reader = new CompletionHandler<>() {
+            @Override public void completed(Integer n, Void att) {
+                try {
+                    onRead(n);
+                } catch (RuntimeException e) {
+                    fail(e);
                 }
-
-                case NEED_UNWRAP -> {
-                    CompletableFuture<Void> cf = new CompletableFuture<>();
-                    unwrapHandshakeStep(cf);
-                    yield cf;
+            }
+            @Override public void failed(Throwable exc, Void att) { fail(exc); }
+        };
+        final CompletionHandler<Integer, Void> writer = new CompletionHandler<>() {
+            @Override public void completed(Integer n, Void att) {
+                try {
+                    onWrite(n);
+                } catch (RuntimeException e) {
+                    fail(e);
                 }
+            }
+            @Override public void failed(Throwable exc, Void att) { fail(exc); }
+        };
 
-                case NEED_UNWRAP_AGAIN -> handshakeLoop();
-            };
+        // every step has to finish in time, or the channel is closed, which fails the pending read or write
+        final Deadline readDeadline;
+        final Deadline writeDeadline;
+
+        // written by the I/O thread only, read by a drain as well
+        private volatile int servedRequests;
+        private boolean keepAlive;
+        // the response being written: the buffer going out, and the rest of a streamed body
+        private BufferLease outLease;
+        private Response.BodyStream stream;
+
+        private CompletableFuture<ByteBuffer> http2Read;
+        private CompletableFuture<Void> http2Write;
+
+        Connection(AsynchronousSocketChannel ch, HttpHandler handler, Runnable onClose, String kind,
+                   InputBuffer input) {
+            this.ch = Objects.requireNonNull(ch, "ch");
+            this.handler = Objects.requireNonNull(handler, "handler");
+            this.onClose = Objects.requireNonNull(onClose, "onClose");
+            this.kind = kind;
+            this.input = input;
+            this.readDeadline = new Deadline(ch);
+            this.writeDeadline = new Deadline(ch);
         }
 
-        private void unwrapHandshakeStep(CompletableFuture<Void> cf) {
-            if (netIn.position() == 0) {
-                readMoreNet()
-                        .whenComplete((n, t) -> {
-                            if (t != null) cf.completeExceptionally(t);
-                            else if (n < 0) cf.completeExceptionally(new EOFException("peer closed during handshake"));
-                            else unwrapHandshakeStep(cf);
-                        });
+        abstract void start();
+
+        /** A channel read completed. */
+        abstract void onRead(int n);
+
+        /** A channel write completed. */
+        abstract void onWrite(int n);
+
+        /** Takes the next head from the input, or reads more; calls {@link #onHead} once there is one. */
+        abstract void continueReading();
+
+        /** Writes the whole buffer, then calls {@link #writeDone}. */
+        abstract void startWrite(ByteBuffer src);
+
+        /** Starts an HTTP/2 read, which ends with {@link #completeHttp2Read}. */
+        abstract void startHttp2Read();
+
+        /** Ends the connection once it has served its last request. */
+        abstract void close();
+
+        /** Releases what the connection type holds besides the input. */
+        abstract void releaseBuffers();
+
+        /**
+         * Serves requests one after the other until the client closes, asks to close, or the request limit
+         * is reached.
+         */
+        final void readRequest() {
+            state = State.READING;
+            // set before the flag is checked, the reverse of drain(), so one of them sees the other
+            if (draining && servedRequests > 0) {
+                close();
                 return;
             }
+            boolean first = servedRequests == 0;
+            readDeadline.arm(first ? REQUEST_HEAD_TIMEOUT_MILLIS : KEEP_ALIVE_IDLE_TIMEOUT_MILLIS,
+                    first ? "request head" : "keep-alive wait");
+            continueReading();
+        }
 
-            netIn.flip();
-            ByteBuffer dummyApp = ByteBuffer.allocate(appBufSize);
-            SSLEngineResult r;
+        /**
+         * Parses the head, runs the handler and writes its response. A malformed head is answered with 400,
+         * a failing handler with 500.
+         */
+        final void onHead(ByteBuffer head) {
+            readDeadline.cancel();
+            servedRequests++;
+            state = State.WRITING;
+            writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "response");
+
+            Request request;
             try {
-                r = engine.unwrap(netIn, dummyApp);
-            } catch (SSLException e) {
-                netIn.compact();
-                cf.completeExceptionally(e);
+                request = Request.parse(head);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Bad request: " + e.getMessage());
+                send(Response.text(400, "Bad request\n"), true, false);
                 return;
             }
-            netIn.compact();
+            // bodies aren't read, so a connection whose request has one can't be reused
+            boolean keepAlive = servedRequests < KEEP_ALIVE_MAX_REQUESTS && request.isKeepAlive() && !request.hasBody();
+            boolean withBody = !"HEAD".equals(request.method());
+            invoke(handler, request).thenAccept(response -> send(response, withBody, keepAlive));
+        }
 
-            switch (r.getStatus()) {
-                case OK -> {
-                    if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
-                    handshakeLoop().whenComplete((v, t) -> {
-                        if (t != null) cf.completeExceptionally(t);
-                        else cf.complete(null);
-                    });
-                }
-                case BUFFER_UNDERFLOW -> {
-                    ensureNetInCapacity(packetBufSize);
-                    readMoreNet().whenComplete((n, t) -> {
-                        if (t != null) cf.completeExceptionally(t);
-                        else if (n < 0) cf.completeExceptionally(new EOFException("peer closed during handshake"));
-                        else unwrapHandshakeStep(cf);
-                    });
-                }
-                case BUFFER_OVERFLOW -> cf.completeExceptionally(
-                        new IllegalStateException("Unexpected BUFFER_OVERFLOW during handshake unwrap")
-                );
-                case CLOSED -> cf.completeExceptionally(new EOFException("Engine closed during handshake"));
+        private void send(Response response, boolean withBody, boolean keepAlive) {
+            // a drain that started while the handler ran still gets the client told
+            this.keepAlive = keepAlive && !draining;
+            this.stream = withBody ? response.stream() : null;
+            try {
+                write(ResponseWriter.head(response, withBody, this.keepAlive));
+            } catch (RuntimeException e) {
+                fail(e);
             }
         }
 
-        private CompletionStage<String> readHttpHeaders() {
-            StringBuilder sb = new StringBuilder(1024);
-            return readHeadersLoop(sb);
+        private void write(BufferLease lease) {
+            outLease = lease;
+            startWrite(lease.buffer());
         }
 
-        private CompletionStage<String> readHeadersLoop(StringBuilder sb) {
-            return tlsReadTextChunk()
-                    .thenCompose(chunk -> {
-                        if (chunk == null) return CompletableFuture.failedFuture(new EOFException("peer closed"));
-                        sb.append(chunk);
-                        if (sb.indexOf("\r\n\r\n") >= 0) return CompletableFuture.completedFuture(sb.toString());
-                        return readHeadersLoop(sb);
-                    });
+        /** Called once the buffer given to {@link #startWrite} is out. */
+        final void writeDone() {
+            if (state == State.HTTP2) {
+                writeDeadline.cancel();
+                CompletableFuture<Void> cf = http2Write;
+                http2Write = null;
+                cf.complete(null);
+                return;
+            }
+            outLease.release();
+            outLease = null;
+            if (stream != null) {
+                // the deadline counts from the last write that went out, so a long body can take its time
+                writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "response");
+                writeNextPiece();
+                return;
+            }
+            writeDeadline.cancel();
+            if (keepAlive) readRequest();
+            else close();
+        }
+
+        // the next piece is only asked for once the previous one is written
+        private void writeNextPiece() {
+            stream.next().whenComplete((piece, t) -> {
+                if (t != null) {
+                    fail(t);
+                } else if (piece == null) {
+                    stream = null;
+                    write(ResponseWriter.lastChunk());
+                } else if (!piece.hasRemaining()) {
+                    writeNextPiece();
+                } else {
+                    write(ResponseWriter.chunk(piece));
+                }
+            });
         }
 
-        private CompletionStage<String> tlsReadTextChunk() {
-            ByteBuffer app = ByteBuffer.allocate(appBufSize);
-            CompletableFuture<String> cf = new CompletableFuture<>();
-            tlsReadInto(app, cf);
-            return cf;
+        /**
+         * The peer closed: fine between requests, not within a head. A drain ends the wait for a request
+         * the same way, and a head that hasn't arrived completely by then is dropped.
+         */
+        final void peerClosed() {
+            if (input.isEmpty() || draining) close();
+            else fail(new EOFException("peer closed within a request head"));
         }
 
-        private void tlsReadInto(ByteBuffer appDst, CompletableFuture<String> cf) {
-            if (netIn.position() == 0) {
-                readMoreNet().whenComplete((n, t) -> {
-                    if (t != null) cf.completeExceptionally(t);
-                    else if (n < 0) cf.complete(null);
-                    else tlsReadInto(appDst, cf);
-                });
+        /**
+         * Shutting down the input ends a pending wait for the next request like the peer closing would,
+         * on the I/O thread that serves the connection. Other states check the flag once they are done.
+         */
+        @Override public final void drain() {
+            draining = true;
+            State s = state;
+            if (s == State.READING && servedRequests > 0) {
+                try { ch.shutdownInput(); } catch (Exception ignored) {}
+            } else if (s == State.HTTP2) {
+                http2.shutdown();
+            }
+        }
+
+        final void serveHttp2(ByteBuffer initial) {
+            readDeadline.cancel();
+            Http2Connection h2 = new Http2Connection(handler, new Http2Connection.Transport() {
+                @Override public CompletionStage<ByteBuffer> read() {
+                    CompletableFuture<ByteBuffer> cf = new CompletableFuture<>();
+                    http2Read = cf;
+                    startHttp2Read();
+                    return cf;
+                }
+
+                // only streams count, PINGs alone don't keep a connection open
+                @Override public void idle(boolean idle) {
+                    if (idle) readDeadline.arm(KEEP_ALIVE_IDLE_TIMEOUT_MILLIS, "HTTP/2 idle wait");
+                    else readDeadline.cancel();
+                }
+
+                @Override public CompletionStage<Void> write(ByteBuffer buffer) {
+                    CompletableFuture<Void> cf = new CompletableFuture<>();
+                    http2Write = cf;
+                    writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "HTTP/2 write");
+                    startWrite(buffer);
+                    return cf;
+                }
+            });
+            http2 = h2;
+            state = State.HTTP2;
+            h2.serve(initial).whenComplete((v, t) -> {
+                if (t != null) fail(t);
+                else close();
+            });
+            if (draining) {
+                h2.shutdown();
+            }
+        }
+
+        /** Hands what was read to the HTTP/2 connection, null once the peer closed. */
+        final void completeHttp2Read(ByteBuffer data) {
+            CompletableFuture<ByteBuffer> cf = http2Read;
+            http2Read = null;
+            cf.complete(data);
+        }
+
+        final void fail(Throwable t) {
+            if (closed.get()) {
+                // the close failed what was still pending
                 return;
             }
+            LOGGER.error(kind + " connection error", t);
+            if (http2Read != null) http2Read.completeExceptionally(t);
+            if (http2Write != null) http2Write.completeExceptionally(t);
+            closeNow();
+        }
+
+        final void closeNow() {
+            if (!closed.compareAndSet(false, true)) return;
+            state = State.CLOSING;
+            readDeadline.cancel();
+            writeDeadline.cancel();
+            try { ch.close(); } catch (Exception ignored) {}
+            if (outLease != null) outLease.release();
+            input.release();
+            releaseBuffers();
+            onClose.run();
+        }
+    }
+
+    static final class TlsConnection extends Connection {
+        private final SSLEngine engine;
+
+        // leases are swapped when a buffer grows; netIn/netOut always point at the current one
+        private BufferLease netInLease;
+        private BufferLease netOutLease;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        // handshake output and HTTP/2 input are unwrapped here, HTTP/1.1 heads straight into the input
+        private final BufferLease appLease;
+        // what is being wrapped and written
+        private ByteBuffer appOut;
+
+        private final int packetBufSize;
+        private final int appBufSize;
+
+        private final HandshakeCounters handshakes;
+        private long handshakeStartedMillis;
+
+        TlsConnection(AsynchronousSocketChannel ch, SSLContext sslContext, ServerStartEvent cfg,
+                      HttpHandler handler, HandshakeCounters handshakes, Runnable onClose) {
+            this(ch, createEngine(peer(ch), sslContext, cfg), handler, handshakes, onClose);
+        }
+
+        private TlsConnection(AsynchronousSocketChannel ch, SSLEngine engine, HttpHandler handler,
+                              HandshakeCounters handshakes, Runnable onClose) {
+            this(ch, engine, engine.getSession(), handler, handshakes, onClose);
+        }
+
+        private TlsConnection(AsynchronousSocketChannel ch, SSLEngine engine, SSLSession session, HttpHandler handler,
+                              HandshakeCounters handshakes, Runnable onClose) {
+            super(ch, handler, onClose, "TLS",
+                    new InputBuffer(session.getApplicationBufferSize(), MAX_REQUEST_HEAD_BYTES));
+            this.engine = engine;
+            this.handshakes = Objects.requireNonNull(handshakes, "handshakes");
+            this.packetBufSize = session.getPacketBufferSize();
+            this.appBufSize = session.getApplicationBufferSize();
+
+            this.netInLease = POOL.acquire(packetBufSize);
+            this.netOutLease = POOL.acquire(packetBufSize);
+            this.appLease = POOL.acquire(appBufSize);
+            this.netIn = netInLease.buffer();
+            this.netOut = netOutLease.buffer();
+        }
 
-            netIn.flip();
-            SSLEngineResult r;
+        @Override void start() {
+            state = State.HANDSHAKING;
+            readDeadline.arm(HANDSHAKE_TIMEOUT_MILLIS, "TLS handshake");
+            handshakeStartedMillis = System.currentTimeMillis();
             try {
-                r = engine.unwrap(netIn, appDst);
+                engine.beginHandshake();
             } catch (SSLException e) {
-                netIn.compact();
-                cf.completeExceptionally(e);
+                fail(e);
                 return;
             }
-            netIn.compact();
+            handshake();
+        }
 
-            switch (r.getStatus()) {
-                case OK -> {
-                    if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
-                    if (r.bytesProduced() > 0) {
-                        appDst.flip();
-                        CharBuffer chars = StandardCharsets.US_ASCII.decode(appDst);
-                        cf.complete(chars.toString());
-                    } else {
-                        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP || netIn.position() == 0) {
-                            readMoreNet().whenComplete((n, t) -> {
-                                if (t != null) cf.completeExceptionally(t);
-                                else if (n < 0) cf.complete(null);
-                                else tlsReadInto(appDst, cf);
-                            });
-                        } else {
-                            tlsReadInto(appDst, cf);
+        // advances the handshake as far as it gets without waiting; reads, writes and tasks call back in here
+        private void handshake() {
+            try {
+                while (true) {
+                    SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                    switch (hs) {
+                        case FINISHED, NOT_HANDSHAKING -> {
+                            handshakeDone();
+                            return;
+                        }
+                        case NEED_TASK -> {
+                            runDelegatedTasks(this::handshake);
+                            return;
+                        }
+                        case NEED_WRAP -> {
+                            netOut.clear();
+                            engine.wrap(EMPTY, netOut);
+                            netOut.flip();
+                            if (netOut.hasRemaining()) {
+                                writeNet();
+                                return;
+                            }
+                        }
+                        case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                            if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP && netIn.position() == 0) {
+                                readNet();
+                                return;
+                            }
+                            netIn.flip();
+                            SSLEngineResult r;
+                            try {
+                                r = engine.unwrap(netIn, appLease.buffer().clear());
+                            } finally {
+                                netIn.compact();
+                            }
+                            switch (r.getStatus()) {
+                                // NEED_TASK is picked up by the loop
+                                case OK -> { }
+                                case BUFFER_UNDERFLOW -> {
+                                    readNet();
+                                    return;
+                                }
+                                case BUFFER_OVERFLOW -> throw new IllegalStateException(
+                                        "Unexpected BUFFER_OVERFLOW during handshake unwrap");
+                                case CLOSED -> throw new EOFException("Engine closed during handshake");
+                            }
                         }
                     }
                 }
-                case BUFFER_UNDERFLOW -> {
-                    ensureNetInCapacity(packetBufSize);
-                    readMoreNet().whenComplete((n, t) -> {
-                        if (t != null) cf.completeExceptionally(t);
-                        else if (n < 0) cf.complete(null);
-                        else tlsReadInto(appDst, cf);
-                    });
-                }
-                case BUFFER_OVERFLOW -> cf.completeExceptionally(new IllegalStateException("App buffer too small (unexpected)"));
-                case CLOSED -> cf.complete(null);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
             }
         }
 
-        private CompletionStage<Void> writeHelloResponse(String requestHeaders) {
-            String firstLine = requestHeaders.lines().findFirst().orElse("<no request line>");
+        private void handshakeDone() {
+            readDeadline.cancel();
+            handshakes.count(engine, handshakeStartedMillis);
+            if ("h2".equals(engine.getApplicationProtocol())) serveHttp2(EMPTY);
+            else readRequest();
+        }
 
-            byte[] body = ("Hello TLS!\nserver=" + cfg.id() + "\nYou said: " + firstLine + "\n")
-                    .getBytes(StandardCharsets.UTF_8);
+        @Override void onRead(int n) {
+            if (n < 0) {
+                switch (state) {
+                    case HANDSHAKING -> fail(new EOFException("peer closed during handshake"));
+                    case HTTP2 -> completeHttp2Read(null);
+                    default -> peerClosed();
+                }
+                return;
+            }
+            if (state == State.HANDSHAKING) handshake();
+            else continueReading();
+        }
 
-            String headers =
-                    "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: text/plain; charset=utf-8\r\n" +
-                            "Content-Length: " + body.length + "\r\n" +
-                            "Connection: close\r\n" +
-                            "\r\n";
+        /**
+         * Unwraps what has been read, HTTP/1.1 straight into the input until it holds a head, HTTP/2 into
+         * the app buffer until there is something to hand over, reading more as needed.
+         */
+        @Override void continueReading() {
+            try {
+                while (true) {
+                    if (state == State.HTTP2) {
+                        if (appLease.buffer().position() > 0) {
+                            completeHttp2Read(appLease.buffer().flip());
+                            return;
+                        }
+                    } else {
+                        ByteBuffer head = input.takeHead();
+                        if (head != null) {
+                            onHead(head);
+                            return;
+                        }
+                    }
+                    if (netIn.position() == 0) {
+                        readNet();
+                        return;
+                    }
 
-            byte[] head = headers.getBytes(StandardCharsets.US_ASCII);
-            ByteBuffer app = ByteBuffer.allocate(head.length + body.length);
-            app.put(head).put(body).flip();
+                    ByteBuffer dst = state == State.HTTP2 ? appLease.buffer() : input.writable(appBufSize);
+                    netIn.flip();
+                    SSLEngineResult r;
+                    try {
+                        r = engine.unwrap(netIn, dst);
+                    } finally {
+                        netIn.compact();
+                    }
+                    switch (r.getStatus()) {
+                        case OK -> {
+                            if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                                runDelegatedTasks(this::continueReading);
+                                return;
+                            }
+                        }
+                        case BUFFER_UNDERFLOW -> {
+                            readNet();
+                            return;
+                        }
+                        case BUFFER_OVERFLOW -> throw new IllegalStateException("App buffer too small (unexpected)");
+                        case CLOSED -> {
+                            if (state == State.HTTP2) completeHttp2Read(null);
+                            else peerClosed();
+                            return;
+                        }
+                    }
+                }
+            } catch (SSLException | RuntimeException e) {
+                fail(e);
+            }
+        }
 
-            return tlsWrite(app);
+        @Override void startHttp2Read() {
+            appLease.buffer().clear();
+            continueReading();
         }
 
-        private CompletionStage<Void> tlsWrite(ByteBuffer appSrc) {
-            CompletableFuture<Void> cf = new CompletableFuture<>();
-            tlsWriteLoop(appSrc, cf);
-            return cf;
+        @Override void startWrite(ByteBuffer src) {
+            appOut = src;
+            wrapNext();
         }
 
-        private void tlsWriteLoop(ByteBuffer appSrc, CompletableFuture<Void> cf) {
-            if (!appSrc.hasRemaining()) {
-                cf.complete(null);
+        // wraps the next record and writes it; once everything is out the write is done
+        private void wrapNext() {
+            if (!appOut.hasRemaining()) {
+                appOut = null;
+                writeDone();
                 return;
             }
-
-            netOut.clear();
-            SSLEngineResult r;
             try {
-                r = engine.wrap(appSrc, netOut);
-            } catch (SSLException e) {
-                cf.completeExceptionally(e);
-                return;
-            }
-
-            switch (r.getStatus()) {
-                case OK -> {
-                    if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
-                    netOut.flip();
-                    writeFully(netOut).whenComplete((v, t) -> {
-                        if (t != null) cf.completeExceptionally(t);
-                        else tlsWriteLoop(appSrc, cf);
-                    });
-                }
-                case BUFFER_OVERFLOW -> {
-                    netOut = grow(netOut, packetBufSize);
-                    tlsWriteLoop(appSrc, cf);
+                netOut.clear();
+                SSLEngineResult r = engine.wrap(appOut, netOut);
+                switch (r.getStatus()) {
+                    case OK -> {
+                        netOut.flip();
+                        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runDelegatedTasks(this::writeNet);
+                        } else {
+                            writeNet();
+                        }
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        netOutLease = grow(netOutLease, packetBufSize);
+                        netOut = netOutLease.buffer();
+                        wrapNext();
+                    }
+                    case BUFFER_UNDERFLOW -> throw new IllegalStateException("wrap() returned BUFFER_UNDERFLOW (unexpected)");
+                    case CLOSED -> throw new EOFException("Engine closed while writing");
                 }
-                case BUFFER_UNDERFLOW -> cf.completeExceptionally(
-                        new IllegalStateException("wrap() returned BUFFER_UNDERFLOW (unexpected)")
-                );
-                case CLOSED -> cf.complete(null);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
             }
         }
 
-        private CompletionStage<Void> closeGracefully() {
-            try { engine.closeOutbound(); } catch (Exception ignored) {}
+        @Override void onWrite(int n) {
+            if (n < 0) {
+                fail(new EOFException("write failed/closed"));
+                return;
+            }
+            if (netOut.hasRemaining()) {
+                writeNet();
+                return;
+            }
+            switch (state) {
+                case HANDSHAKING -> handshake();
+                case CLOSING -> closeNow();
+                default -> wrapNext();
+            }
+        }
 
-            netOut.clear();
+        /** Sends close_notify, then closes. */
+        @Override void close() {
+            state = State.CLOSING;
+            writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "close_notify");
             try {
-                SSLEngineResult r = engine.wrap(ByteBuffer.allocate(0), netOut);
-                if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
-                    netOut.flip();
-                    return writeFully(netOut);
+                engine.closeOutbound();
+                netOut.clear();
+                SSLEngineResult r = engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED && netOut.hasRemaining()) {
+                    writeNet();
+                    return;
                 }
-            } catch (SSLException ignored) {}
+            } catch (SSLException | RuntimeException ignored) {}
+            closeNow();
+        }
 
-            return CompletableFuture.completedFuture(null);
+        @Override void releaseBuffers() {
+            netInLease.release();
+            netOutLease.release();
+            appLease.release();
         }
 
-        private void closeNow() {
-            try { ch.close(); } catch (Exception ignored) {}
+        private void readNet() {
+            ensureNetInCapacity(packetBufSize);
+            ch.read(netIn, null, reader);
         }
 
-        // ---- async primitives ----
+        private void writeNet() {
+            ch.write(netOut, null, writer);
+        }
 
-        private CompletionStage<Integer> readMoreNet() {
-            ensureNetInCapacity(packetBufSize);
-            return read(netIn);
+        /**
+         * Runs the engine's pending tasks on the handshake pool, then continues there. Their CPU time is
+         * added to the server's handshake stats.
+         */
+        private void runDelegatedTasks(Runnable then) {
+            try {
+                HANDSHAKE_POOL.execute(() -> {
+                    try {
+                        runTasks(engine, handshakes);
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        return;
+                    }
+                    then.run();
+                });
+            } catch (RejectedExecutionException e) {
+                fail(e);
+            }
         }
 
-        private static CompletableFuture<Integer> read(AsynchronousSocketChannel ch, ByteBuffer dst) {
-            var cf = new CompletableFuture<Integer>();
-            ch.read(dst, null, new CompletionHandler<>() {
-                @Override public void completed(Integer n, Object att) { cf.complete(n); }
-                @Override public void failed(Throwable exc, Object att) { cf.completeExceptionally(exc); }
-            });
-            return cf;
+        private void ensureNetInCapacity(int minCapacity) {
+            if (netIn.remaining() >= minCapacity) return;
+            netInLease = grow(netInLease, minCapacity);
+            netIn = netInLease.buffer();
         }
 
-        private CompletableFuture<Integer> read(ByteBuffer dst) {
-            return read(ch, dst);
+        private static BufferLease grow(BufferLease lease, int minExtraOrTarget) {
+            int needed = Math.max(lease.capacity() * 2, lease.buffer().position() + minExtraOrTarget);
+            return POOL.grow(lease, needed);
         }
+    }
 
-        private CompletionStage<Void> writeFully(ByteBuffer src) {
-            var cf = new CompletableFuture<Void>();
-            writeFullyLoop(src, cf);
-            return cf;
+    // ============================================================================================
+    // Plain HTTP connection (no TLS)
+    // ============================================================================================
+
+    static final class PlainConnection extends Connection {
+
+        // until the first bytes show whether the client speaks h2c without asking
+        private boolean prefaceChecked;
+        // what is being written
+        private ByteBuffer out;
+
+        PlainConnection(AsynchronousSocketChannel ch, HttpHandler handler, Runnable onClose) {
+            super(ch, handler, onClose, "Plain", new InputBuffer(8192, MAX_REQUEST_HEAD_BYTES));
         }
 
-        private void writeFullyLoop(ByteBuffer src, CompletableFuture<Void> cf) {
-            if (!src.hasRemaining()) {
-                cf.complete(null);
+        @Override void start() {
+            readRequest();
+        }
+
+        @Override void onRead(int n) {
+            if (state == State.HTTP2) {
+                completeHttp2Read(n < 0 ? null : input.takeBuffered());
                 return;
             }
-            ch.write(src, null, new CompletionHandler<>() {
-                @Override public void completed(Integer n, Object att) {
-                    if (n == null || n < 0) {
-                        cf.completeExceptionally(new EOFException("write failed/closed"));
-                        return;
-                    }
-                    writeFullyLoop(src, cf);
+            if (n < 0) {
+                peerClosed();
+                return;
+            }
+            if (!prefaceChecked) {
+                checkPreface();
+                return;
+            }
+            continueReading();
+        }
+
+        /**
+         * Reads until the input either is or can't be the HTTP/2 preface, for clients that know the server
+         * speaks h2c without asking. Anything else is left to the HTTP/1.1 parser.
+         */
+        private void checkPreface() {
+            if (Http2Connection.isPrefacePrefix(input.buffered())) {
+                if (Http2Connection.startsWithPreface(input.buffered())) {
+                    serveHttp2(input.takeBuffered());
+                } else {
+                    readInput();
                 }
-                @Override public void failed(Throwable exc, Object att) { cf.completeExceptionally(exc); }
-            });
+                return;
+            }
+            prefaceChecked = true;
+            continueReading();
+        }
+
+        @Override void continueReading() {
+            ByteBuffer head;
+            try {
+                head = input.takeHead();
+            } catch (IllegalArgumentException e) {
+                fail(e);
+                return;
+            }
+            if (head != null) onHead(head);
+            else readInput();
         }
 
-        // ---- helpers ----
+        @Override void startHttp2Read() {
+            readInput();
+        }
 
-        private void runDelegatedTasks() {
-            Runnable task;
-            while ((task = engine.getDelegatedTask()) != null) task.run();
+        private void readInput() {
+            ch.read(input.writable(PLAIN_READ_BYTES), null, reader);
         }
 
-        private void ensureNetInCapacity(int minCapacity) {
-            if (netIn.remaining() >= minCapacity) return;
-            netIn = grow(netIn, minCapacity);
+        @Override void startWrite(ByteBuffer src) {
+            out = src;
+            ch.write(src, null, writer);
+        }
+
+        @Override void onWrite(int n) {
+            if (n < 0) {
+                fail(new EOFException("write failed/closed"));
+            } else if (out.hasRemaining()) {
+                ch.write(out, null, writer);
+            } else {
+                out = null;
+                writeDone();
+            }
+        }
+
+        @Override void close() {
+            closeNow();
         }
 
-        private static ByteBuffer grow(ByteBuffer buf, int minExtraOrTarget) {
-            int needed = Math.max(buf.capacity() * 2, buf.position() + minExtraOrTarget);
-            ByteBuffer bigger = ByteBuffer.allocate(needed);
-            buf.flip();
-            bigger.put(buf);
-            return bigger;
+        @Override void releaseBuffers() {
         }
     }
 
     // ============================================================================================
-    // Plain HTTP connection (no TLS)
+    // Blocking connection on a virtual thread
     // ============================================================================================
 
-    static final class PlainConnection {
-        private final AsynchronousSocketChannel ch;
-        private final ByteBuffer in = ByteBuffer.allocate(8192);
+    /**
+     * A connection served by its own virtual thread in plain blocking code: read a head, parse it, wait for
+     * the handler's response, write it, repeat. A blocked read, write or handler only parks that thread, so
+     * handlers may call blocking backends. TLS goes through the same {@link SSLEngine} as on the async
+     * connections, wrapped and unwrapped around blocking channel reads and writes; delegated tasks go to
+     * the same handshake pool, and the connection's thread waits for them. Over HTTP/2, reads and writes
+     * overlap, so each one takes a virtual thread of its own.
+     */
+    static final class BlockingConnection implements Runnable, Drainable {
+        private final SocketChannel ch;
+        // null for plain connections
+        private final SSLEngine engine;
+        private final HttpHandler handler;
+        private final HandshakeCounters handshakes;
+        private final Runnable onClose;
+        private final Deadline readDeadline;
+        private final Deadline writeDeadline;
+
+        // not parsed yet, may already hold the next pipelined request
+        private final InputBuffer input;
+        private BufferLease netInLease;
+        private BufferLease netOutLease;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        // handshake output and HTTP/2 input are unwrapped here, HTTP/1.1 heads straight into the input
+        private final BufferLease appLease;
+        private final int packetBufSize;
+        private final int appBufSize;
 
-        PlainConnection(AsynchronousSocketChannel ch) {
+        private volatile boolean draining;
+        // blocked on a read for a request after the first
+        private volatile boolean waiting;
+        private volatile Http2Connection http2;
+
+        BlockingConnection(SocketChannel ch, SSLEngine engine, HttpHandler handler, HandshakeCounters handshakes,
+                           Runnable onClose) {
             this.ch = Objects.requireNonNull(ch, "ch");
+            this.engine = engine;
+            this.handler = Objects.requireNonNull(handler, "handler");
+            this.handshakes = Objects.requireNonNull(handshakes, "handshakes");
+            this.onClose = Objects.requireNonNull(onClose, "onClose");
+            this.readDeadline = new Deadline(ch);
+            this.writeDeadline = new Deadline(ch);
+            if (engine != null) {
+                SSLSession session = engine.getSession();
+                this.packetBufSize = session.getPacketBufferSize();
+                this.appBufSize = session.getApplicationBufferSize();
+                this.netInLease = POOL.acquire(packetBufSize);
+                this.netOutLease = POOL.acquire(packetBufSize);
+                this.appLease = POOL.acquire(appBufSize);
+                this.netIn = netInLease.buffer();
+                this.netOut = netOutLease.buffer();
+            } else {
+                this.packetBufSize = 0;
+                this.appBufSize = PLAIN_READ_BYTES;
+                this.appLease = null;
+            }
+            this.input = new InputBuffer(engine != null ? appBufSize : 8192, MAX_REQUEST_HEAD_BYTES);
         }
 
-        void start() {
-            readHeaders(new StringBuilder(1024))
-                    .thenCompose(this::writeHello)
-                    .whenComplete((v, t) -> {
-                        if (t != null) LOGGER.error("Plain connection error", t);
-                        try { ch.close(); } catch (Exception ignored) {}
-                    });
+        @Override public void run() {
+            try {
+                if (engine != null) {
+                    readDeadline.arm(HANDSHAKE_TIMEOUT_MILLIS, "TLS handshake");
+                    long startedMillis = System.currentTimeMillis();
+                    handshake();
+                    readDeadline.cancel();
+                    handshakes.count(engine, startedMillis);
+                    if ("h2".equals(engine.getApplicationProtocol())) serveHttp2(EMPTY);
+                    else serveRequests();
+                    closeGracefully();
+                } else if (readPreface()) {
+                    serveHttp2(input.takeBuffered());
+                } else {
+                    serveRequests();
+                }
+            } catch (Exception e) {
+                LOGGER.error((engine != null ? "TLS" : "Plain") + " connection error", e);
+            } finally {
+                readDeadline.cancel();
+                writeDeadline.cancel();
+                try { ch.close(); } catch (Exception ignored) {}
+                input.release();
+                if (engine != null) {
+                    netInLease.release();
+                    netOutLease.release();
+                    appLease.release();
+                }
+                onClose.run();
+            }
         }
 
-        private CompletionStage<String> readHeaders(StringBuilder sb) {
-            CompletableFuture<String> cf = new CompletableFuture<>();
-            ch.read(in, null, new CompletionHandler<>() {
-                @Override public void completed(Integer n, Object att) {
-                    if (n == null || n < 0) {
-                        cf.completeExceptionally(new EOFException("peer closed"));
+        private void handshake() throws IOException {
+            engine.beginHandshake();
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                switch (hs) {
+                    case FINISHED, NOT_HANDSHAKING -> {
                         return;
                     }
-                    in.flip();
-                    sb.append(StandardCharsets.US_ASCII.decode(in));
-                    in.clear();
-
-                    if (sb.indexOf("\r\n\r\n") >= 0) cf.complete(sb.toString());
-                    else readHeaders(sb).whenComplete((s, t) -> {
-                        if (t != null) cf.completeExceptionally(t);
-                        else cf.complete(s);
-                    });
+                    case NEED_TASK -> runDelegatedTasks();
+                    case NEED_WRAP -> {
+                        netOut.clear();
+                        engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        writeFully(netOut);
+                    }
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP && netIn.position() == 0) {
+                            readNet("peer closed during handshake");
+                            continue;
+                        }
+                        netIn.flip();
+                        SSLEngineResult r;
+                        try {
+                            r = engine.unwrap(netIn, appLease.buffer().clear());
+                        } finally {
+                            netIn.compact();
+                        }
+                        switch (r.getStatus()) {
+                            case OK -> { }
+                            case BUFFER_UNDERFLOW -> readNet("peer closed during handshake");
+                            case BUFFER_OVERFLOW -> throw new IllegalStateException(
+                                    "Unexpected BUFFER_OVERFLOW during handshake unwrap");
+                            case CLOSED -> throw new EOFException("Engine closed during handshake");
+                        }
+                    }
                 }
+            }
+        }
 
-                @Override public void failed(Throwable exc, Object att) {
-                    cf.completeExceptionally(exc);
+        /**
+         * Reads until the input either is or can't be the HTTP/2 preface, for clients that know the server
+         * speaks h2c without asking. Anything else is left to the HTTP/1.1 parser.
+         */
+        private boolean readPreface() throws IOException {
+            readDeadline.arm(REQUEST_HEAD_TIMEOUT_MILLIS, "request head");
+            try {
+                while (Http2Connection.isPrefacePrefix(input.buffered())) {
+                    if (Http2Connection.startsWithPreface(input.buffered())) {
+                        return true;
+                    }
+                    if (ch.read(input.writable(PLAIN_READ_BYTES)) < 0) {
+                        return false;
+                    }
                 }
-            });
-            return cf;
+                return false;
+            } finally {
+                readDeadline.cancel();
+            }
         }
 
-        private CompletionStage<Void> writeHello(String requestHeaders) {
-            String firstLine = requestHeaders.lines().findFirst().orElse("<no request line>");
+        /**
+         * Serves requests one after the other until the client closes, asks to close, or the request limit
+         * is reached.
+         */
+        private void serveRequests() throws IOException {
+            int servedRequests = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                // a new connection gets to send its first request even while draining
+                if (servedRequests > 0) {
+                    // set before the flag is checked, the reverse of drain(), so one of them sees the other
+                    waiting = true;
+                    if (draining) {
+                        return;
+                    }
+                }
+                boolean first = servedRequests == 0;
+                readDeadline.arm(first ? REQUEST_HEAD_TIMEOUT_MILLIS : KEEP_ALIVE_IDLE_TIMEOUT_MILLIS,
+                        first ? "request head" : "keep-alive wait");
+                ByteBuffer head;
+                try {
+                    head = readHead();
+                } finally {
+                    waiting = false;
+                    readDeadline.cancel();
+                }
+                if (head == null) {
+                    // closed between requests, or drained
+                    return;
+                }
+                servedRequests++;
+                writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "response");
+                try {
+                    keepAlive = respond(head, servedRequests < KEEP_ALIVE_MAX_REQUESTS);
+                } finally {
+                    writeDeadline.cancel();
+                }
+            }
+        }
 
-            byte[] body = ("Hello HTTP!\nYou said: " + firstLine + "\n").getBytes(StandardCharsets.UTF_8);
-            String headers =
-                    "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: text/plain; charset=utf-8\r\n" +
-                            "Content-Length: " + body.length + "\r\n" +
-                            "Connection: close\r\n" +
-                            "\r\n";
+        // the next request head, or null if the peer closed before sending one
+        private ByteBuffer readHead() throws IOException {
+            while (true) {
+                ByteBuffer head = input.takeHead();
+                if (head != null) {
+                    return head;
+                }
+                int n = engine != null ? tlsRead(input.writable(appBufSize)) : ch.read(input.writable(PLAIN_READ_BYTES));
+                if (n < 0) {
+                    if (input.isEmpty() || draining) return null;
+                    throw new EOFException("peer closed within a request head");
+                }
+            }
+        }
 
-            byte[] head = headers.getBytes(StandardCharsets.US_ASCII);
-            ByteBuffer out = ByteBuffer.allocate(head.length + body.length);
-            out.put(head).put(body).flip();
+        /**
+         * Parses the head, runs the handler and writes its response. A malformed head is answered with 400,
+         * a failing handler with 500. Returns true if the connection stays open for another request.
+         */
+        private boolean respond(ByteBuffer head, boolean allowKeepAlive) throws IOException {
+            Request request;
+            try {
+                request = Request.parse(head);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Bad request: " + e.getMessage());
+                write(ResponseWriter.head(Response.text(400, "Bad request\n"), true, false));
+                return false;
+            }
+            // bodies aren't read, so a connection whose request has one can't be reused
+            boolean keepAlive = allowKeepAlive && request.isKeepAlive() && !request.hasBody();
+            boolean withBody = !"HEAD".equals(request.method());
+
+            Response response = await(invoke(handler, request));
+            // a drain that started while the handler ran still gets the client told
+            keepAlive &= !draining;
+            write(ResponseWriter.head(response, withBody, keepAlive));
+            Response.BodyStream stream = withBody ? response.stream() : null;
+            if (stream != null) {
+                ByteBuffer piece;
+                while ((piece = await(stream.next())) != null) {
+                    // an empty chunk would end the body early
+                    if (piece.hasRemaining()) {
+                        write(ResponseWriter.chunk(piece));
+                    }
+                }
+                write(ResponseWriter.lastChunk());
+            }
+            return keepAlive;
+        }
 
-            CompletableFuture<Void> cf = new CompletableFuture<>();
-            writeFully(out, cf);
-            return cf;
+        // the response deadline closes the channel, which doesn't wake a thread waiting here
+        private static <T> T await(CompletionStage<T> stage) throws IOException {
+            try {
+                return stage.toCompletableFuture().get(RESPONSE_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the response");
+            } catch (TimeoutException e) {
+                throw new InterruptedByTimeoutException();
+            } catch (ExecutionException e) {
+                throw new IOException("Response failed", e.getCause());
+            }
         }
 
-        private void writeFully(ByteBuffer src, CompletableFuture<Void> cf) {
-            if (!src.hasRemaining()) {
-                cf.complete(null);
+        /**
+         * Shutting down the input wakes a read waiting for the next request as if the peer closed; the
+         * thread goes on to close the connection. Otherwise the flag is checked once the request is answered.
+         */
+        @Override public void drain() {
+            draining = true;
+            Http2Connection h2 = http2;
+            if (h2 != null) {
+                h2.shutdown();
+            } else if (waiting) {
+                try { ch.shutdownInput(); } catch (Exception ignored) {}
+            }
+        }
+
+        // waits until the HTTP/2 connection is done, its streams each bounded by their own deadlines
+        private void serveHttp2(ByteBuffer initial) {
+            Http2Connection h2 = new Http2Connection(handler, new Http2Connection.Transport() {
+                @Override public CompletionStage<ByteBuffer> read() {
+                    return Context.supplyThrowing(BlockingConnection.this::readHttp2);
+                }
+
+                // closing the channel wakes the thread blocked in the read
+                @Override public void idle(boolean idle) {
+                    if (idle) readDeadline.arm(KEEP_ALIVE_IDLE_TIMEOUT_MILLIS, "HTTP/2 idle wait");
+                    else readDeadline.cancel();
+                }
+
+                @Override public CompletionStage<Void> write(ByteBuffer buffer) {
+                    return Context.supplyThrowing(() -> {
+                        writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "HTTP/2 write");
+                        try {
+                            writeApp(buffer);
+                        } finally {
+                            writeDeadline.cancel();
+                        }
+                        return null;
+                    });
+                }
+            });
+            http2 = h2;
+            CompletionStage<Void> done = h2.serve(initial);
+            if (draining) {
+                h2.shutdown();
+            }
+            done.toCompletableFuture().join();
+        }
+
+        private ByteBuffer readHttp2() throws IOException {
+            if (engine != null) {
+                ByteBuffer app = appLease.buffer().clear();
+                return tlsRead(app) < 0 ? null : app.flip();
+            }
+            return ch.read(input.writable(PLAIN_READ_BYTES)) < 0 ? null : input.takeBuffered();
+        }
+
+        // writes the lease's buffer and releases it
+        private void write(BufferLease lease) throws IOException {
+            try {
+                writeApp(lease.buffer());
+                // as on the async connections, the deadline counts from the last write that went out
+                writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "response");
+            } finally {
+                lease.release();
+            }
+        }
+
+        private void writeApp(ByteBuffer src) throws IOException {
+            if (engine == null) {
+                writeFully(src);
                 return;
             }
-            ch.write(src, null, new CompletionHandler<>() {
-                @Override public void completed(Integer n, Object att) {
-                    if (n == null || n < 0) {
-                        cf.completeExceptionally(new EOFException("write failed/closed"));
-                        return;
+            while (src.hasRemaining()) {
+                netOut.clear();
+                SSLEngineResult r = engine.wrap(src, netOut);
+                switch (r.getStatus()) {
+                    case OK -> {
+                        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runDelegatedTasks();
+                        }
+                        netOut.flip();
+                        writeFully(netOut);
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        netOutLease = TlsConnection.grow(netOutLease, packetBufSize);
+                        netOut = netOutLease.buffer();
                     }
-                    writeFully(src, cf);
+                    case BUFFER_UNDERFLOW -> throw new IllegalStateException("wrap() returned BUFFER_UNDERFLOW (unexpected)");
+                    case CLOSED -> throw new EOFException("Engine closed while writing");
                 }
-                @Override public void failed(Throwable exc, Object att) { cf.completeExceptionally(exc); }
-            });
+            }
         }
-    }
 
-    // ============================================================================================
+        // unwraps into dst until at least one byte came out; -1 once the peer closed
+        private int tlsRead(ByteBuffer dst) throws IOException {
+            while (true) {
+                if (netIn.position() > 0) {
+                    netIn.flip();
+                    SSLEngineResult r;
+                    try {
+                        r = engine.unwrap(netIn, dst);
+                    } finally {
+                        netIn.compact();
+                    }
+                    switch (r.getStatus()) {
+                        case OK -> {
+                            if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                                runDelegatedTasks();
+                            }
+                            if (r.bytesProduced() > 0) {
+                                return r.bytesProduced();
+                            }
+                            if (netIn.position() > 0) {
+                                continue;
+                            }
+                        }
+                        case BUFFER_UNDERFLOW -> { }
+                        case BUFFER_OVERFLOW -> throw new IllegalStateException("App buffer too small (unexpected)");
+                        case CLOSED -> {
+                            return -1;
+                        }
+                    }
+                }
+                ensureNetInCapacity(packetBufSize);
+                if (ch.read(netIn) < 0) {
+                    return -1;
+                }
+            }
+        }
+
+        private void readNet(String eofMessage) throws IOException {
+            ensureNetInCapacity(packetBufSize);
+            if (ch.read(netIn) < 0) {
+                throw new EOFException(eofMessage);
+            }
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                ch.write(src);
+            }
+        }
 
-    static final class Serial {
-        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private void closeGracefully() {
+            writeDeadline.arm(RESPONSE_WRITE_TIMEOUT_MILLIS, "close_notify");
+            try {
+                engine.closeOutbound();
+                netOut.clear();
+                SSLEngineResult r = engine.wrap(EMPTY, netOut);
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    netOut.flip();
+                    writeFully(netOut);
+                }
+            } catch (IOException | RuntimeException ignored) {
+            } finally {
+                writeDeadline.cancel();
+            }
+        }
 
-        synchronized <T> CompletableFuture<T> submit(Supplier<? extends CompletionStage<T>> action) {
-            var next = tail.thenCompose(v -> action.get().toCompletableFuture());
-            tail = next.handle((v, t) -> null);
-            return next;
+        // on the handshake pool as well, which bounds the key exchange work and can measure its CPU time
+        private void runDelegatedTasks() throws IOException {
+            Future<?> done;
+            try {
+                done = HANDSHAKE_POOL.submit(() -> runTasks(engine, handshakes));
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Handshake pool is saturated", e);
+            }
+            try {
+                done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while running delegated tasks");
+            } catch (ExecutionException e) {
+                throw new IOException("Delegated task failed", e.getCause());
+            }
+        }
+
+        private void ensureNetInCapacity(int minCapacity) {
+            if (netIn.remaining() >= minCapacity) return;
+            netInLease = TlsConnection.grow(netInLease, minCapacity);
+            netIn = netInLease.buffer();
         }
     }
 }
@@ -0,0 +1,464 @@
+package server2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link Http2Connection}: the static table, a dynamic table per
+ * direction and the Huffman code. Header octets are mapped to chars one to one (ISO-8859-1), so the table
+ * sizes count exactly what went over the wire.
+ */
+final class Hpack {
+
+    /** The dynamic table size both sides start with, and the most this server accepts or uses. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // per entry on top of name and value, RFC 7541 section 4.1
+    private static final int ENTRY_OVERHEAD = 32;
+    // larger integers than any sane header block needs are taken as an attack
+    private static final int MAX_INTEGER = 1 << 24;
+
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+
+    // Huffman decoding trie: node n's children are at 2n and 2n + 1, leaves hold ~symbol
+    private static final int EOS = 256;
+    private static final int[] TRIE = buildTrie();
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            String[] entry = STATIC_TABLE[i - 1];
+            STATIC_INDEX.put(entry[0] + '\0' + entry[1], i);
+            STATIC_NAME_INDEX.put(entry[0], i);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /** Header fields indexed from 1, the static table first and the newest dynamic entry right after it. */
+    private static final class Table {
+
+        private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            if (index <= 0 || index > STATIC_TABLE.length + entries.size()) {
+                throw new IllegalArgumentException("Header table index out of range: " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            Iterator<String[]> it = entries.iterator();
+            for (int i = STATIC_TABLE.length + 1; i < index; i++) {
+                it.next();
+            }
+            return it.next();
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evictUntil(maxSize - entrySize);
+            // an entry larger than the table just empties it
+            if (entrySize <= maxSize) {
+                entries.addFirst(new String[]{name, value});
+                size += entrySize;
+            }
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evictUntil(maxSize);
+        }
+
+        /** The index of an exact match if positive, minus the index of a name match if negative, else 0. */
+        int indexOf(String name, String value) {
+            Integer exact = STATIC_INDEX.get(name + '\0' + value);
+            if (exact != null) {
+                return exact;
+            }
+            int nameIndex = -STATIC_NAME_INDEX.getOrDefault(name, 0);
+            int index = STATIC_TABLE.length + 1;
+            for (String[] entry : entries) {
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        return index;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -index;
+                    }
+                }
+                index++;
+            }
+            return nameIndex;
+        }
+
+        private void evictUntil(int targetSize) {
+            while (size > Math.max(targetSize, 0) && !entries.isEmpty()) {
+                String[] evicted = entries.removeLast();
+                size -= evicted[0].length() + evicted[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    /** Decodes the header blocks of one connection, in the order they arrive. */
+    static final class Decoder {
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+        /** The fields of a complete header block, as name/value pairs; throws IllegalArgumentException if malformed. */
+        List<String[]> decode(ByteBuffer block) {
+            List<String[]> fields = new ArrayList<>();
+            boolean fieldSeen = false;
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] entry = table.get(readInteger(block, 7));
+                    fields.add(entry);
+                    fieldSeen = true;
+                } else if ((b & 0xc0) == 0x40) {
+                    String[] field = readLiteral(block, 6);
+                    table.add(field[0], field[1]);
+                    fields.add(field);
+                    fieldSeen = true;
+                } else if ((b & 0xe0) == 0x20) {
+                    // a size update is only allowed before the first field
+                    int maxSize = readInteger(block, 5);
+                    if (fieldSeen || maxSize > DEFAULT_TABLE_SIZE) {
+                        throw new IllegalArgumentException("Invalid dynamic table size update: " + maxSize);
+                    }
+                    table.setMaxSize(maxSize);
+                } else {
+                    // without indexing or never indexed, the same to a decoder
+                    fields.add(readLiteral(block, 4));
+                    fieldSeen = true;
+                }
+            }
+            return fields;
+        }
+
+        private String[] readLiteral(ByteBuffer block, int prefixBits) {
+            int nameIndex = readInteger(block, prefixBits);
+            String name = nameIndex == 0 ? readString(block) : table.get(nameIndex)[0];
+            return new String[]{name, readString(block)};
+        }
+    }
+
+    /** Encodes the header blocks of one connection; blocks must be sent in the order they were encoded. */
+    static final class Encoder {
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // size updates owed to the peer, announced at the start of the next block
+        private int lowestPendingSize = -1;
+        private int pendingSize = -1;
+
+        /** Applies the peer's SETTINGS_HEADER_TABLE_SIZE; this side never uses more than the default. */
+        void setMaxTableSize(int peerMaxSize) {
+            int maxSize = Math.min(peerMaxSize, DEFAULT_TABLE_SIZE);
+            if (maxSize == table.maxSize && pendingSize < 0) {
+                return;
+            }
+            table.setMaxSize(maxSize);
+            lowestPendingSize = lowestPendingSize < 0 ? maxSize : Math.min(lowestPendingSize, maxSize);
+            pendingSize = maxSize;
+        }
+
+        /** Appends one field. Values that change with every response are kept out of the dynamic table. */
+        void encode(String name, String value, ByteArrayOutputStream out) {
+            if (pendingSize >= 0) {
+                if (lowestPendingSize < pendingSize) {
+                    writeInteger(out, 0x20, 5, lowestPendingSize);
+                }
+                writeInteger(out, 0x20, 5, pendingSize);
+                lowestPendingSize = -1;
+                pendingSize = -1;
+            }
+
+            int index = table.indexOf(name, value);
+            if (index > 0) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+            boolean indexed = !isVolatile(name);
+            writeInteger(out, indexed ? 0x40 : 0x00, indexed ? 6 : 4, -index);
+            if (index == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (indexed) {
+                table.add(name, value);
+            }
+        }
+
+        private static boolean isVolatile(String name) {
+            return switch (name) {
+                case "content-length", "date", "etag", "last-modified", "set-cookie", "location" -> true;
+                default -> false;
+            };
+        }
+    }
+
+    // --- primitives, RFC 7541 section 5 ---
+
+    private static int readInteger(ByteBuffer block, int prefixBits) {
+        int mask = (1 << prefixBits) - 1;
+        int value = block.get() & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (!block.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated integer");
+            }
+            b = block.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+            if (value > MAX_INTEGER || shift > 28) {
+                throw new IllegalArgumentException("Integer too large");
+            }
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(ByteBuffer block) {
+        if (!block.hasRemaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        boolean huffman = (block.get(block.position()) & 0x80) != 0;
+        int length = readInteger(block, 7);
+        if (length > block.remaining()) {
+            throw new IllegalArgumentException("String longer than the header block");
+        }
+        ByteBuffer bytes = block.slice(block.position(), length);
+        block.position(block.position() + length);
+        return huffman ? huffmanDecode(bytes) : StandardCharsets.ISO_8859_1.decode(bytes).toString();
+    }
+
+    // Huffman only where it's shorter, which it is for most header text
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= s.length()) {
+            writeInteger(out, 0x00, 7, s.length());
+            out.writeBytes(s.getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = s.charAt(i) & 0xff;
+            pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+        }
+        if (pendingBits > 0) {
+            // padded with the most significant bits of EOS, all ones
+            out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+        }
+    }
+
+    private static String huffmanDecode(ByteBuffer bytes) {
+        StringBuilder s = new StringBuilder(bytes.remaining() * 8 / 5);
+        int node = 1;
+        // bits read since the last symbol, and whether they were all ones, for the padding check
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+        while (bytes.hasRemaining()) {
+            int b = bytes.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                node = TRIE[2 * node + one];
+                bitsSinceSymbol++;
+                allOnes &= one == 1;
+                if (node < 0) {
+                    int symbol = ~node;
+                    if (symbol == EOS) {
+                        throw new IllegalArgumentException("EOS in Huffman string");
+                    }
+                    s.append((char) symbol);
+                    node = 1;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                } else if (node == 0) {
+                    throw new IllegalArgumentException("Invalid Huffman code");
+                }
+            }
+        }
+        if (bitsSinceSymbol > 7 || !allOnes) {
+            throw new IllegalArgumentException("Invalid Huffman padding");
+        }
+        return s.toString();
+    }
+
+    private static int[] buildTrie() {
+        // 257 leaves need 256 inner nodes; node 0 is unused, so a 0 child means no code
+        int[] trie = new int[2 * 257 + 2];
+        int nodes = 2;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = symbol == EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+            int length = symbol == EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+            int node = 1;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (trie[slot] == 0) {
+                    trie[slot] = nodes++;
+                }
+                node = trie[slot];
+            }
+            trie[2 * node + (code & 1)] = ~symbol;
+        }
+        return trie;
+    }
+}
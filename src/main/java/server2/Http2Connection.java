@@ -0,0 +1,933 @@
+package server2;
+
+import common.BufferLease;
+import common.BufferPool;
+import logger.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * One HTTP/2 connection (RFC 9113) over a connection that is already set up: TLS once ALPN chose h2, or
+ * plain when the client opened with the prior-knowledge preface. Every stream goes to the
+ * {@link HttpHandler} as soon as its headers are complete and its response is written whenever it is
+ * ready, so one slow response doesn't hold up the others.
+ * <p>
+ * As over HTTP/1.1, request bodies aren't read: DATA is dropped and credited back to the client's window.
+ * Responses stay within the client's flow-control windows, the rest waits for WINDOW_UPDATE.
+ * All state is guarded by the connection's monitor; frames are written in the order they are built.
+ */
+final class Http2Connection {
+
+    /** The connection underneath. */
+    interface Transport {
+
+        /** The next bytes received, valid until the next read, or null once the peer closed. */
+        CompletionStage<ByteBuffer> read();
+
+        /**
+         * Called with true whenever no stream is open any more, false once one opens again, under the
+         * connection's monitor; the transport may close a connection that stays idle too long.
+         */
+        void idle(boolean idle);
+
+        /** Writes the whole buffer. */
+        CompletionStage<Void> write(ByteBuffer buffer);
+    }
+
+    private static final Logger LOGGER = new Logger(Http2Connection.class.getName());
+    private static final BufferPool POOL = BufferPool.shared();
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    private static final int MAX_MAX_FRAME_SIZE = 16_777_215;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    // the same bound as an HTTP/1.1 request head
+    private static final int MAX_HEADER_LIST_SIZE = 32 * 1024;
+    // handed to the transport but not written yet; beyond this DATA waits, like it does for a window
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+    private static final int OUTPUT_CHUNK = DEFAULT_MAX_FRAME_SIZE + FRAME_HEADER_LENGTH;
+    // the payload of the ping a graceful shutdown waits for
+    private static final long SHUTDOWN_PING = 0x5348_5554_444f_574eL;
+
+    private final HttpHandler handler;
+    private final Transport transport;
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // streams with response data waiting for a window or for queue room, in round-robin order
+    private final LinkedHashSet<Stream> sending = new LinkedHashSet<>();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private BufferLease inLease = POOL.acquire(OUTPUT_CHUNK);
+    private ByteBuffer in = inLease.buffer();
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+
+    private int lastStreamId;
+    // a header block split over CONTINUATION frames
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerBlockStream;
+    private boolean headerBlockEndsStream;
+
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private long connectionSendWindow = DEFAULT_WINDOW;
+
+    // frames built but not handed to the transport yet, coalesced into one write
+    private BufferLease outLease;
+    private CompletableFuture<Void> writeTail = CompletableFuture.completedFuture(null);
+    private int queuedBytes;
+    // writes can complete on the flushing thread and ask for another flush, which the running one does
+    private boolean flushing;
+    private boolean flushAgain;
+
+    // no new streams: GOAWAY went either way
+    private boolean goingAway;
+    // the first GOAWAY of a graceful shutdown is out, the final one follows the ping's ACK
+    private boolean shutdownPending;
+    private boolean closed;
+
+    private final class Stream {
+        final int id;
+        long sendWindow = peerInitialWindow;
+        boolean remoteClosed;
+        boolean reset;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        boolean endAfterPending;
+        CompletableFuture<Void> drained = CompletableFuture.completedFuture(null);
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    /** A connection-level error: GOAWAY with the code, then close. */
+    private static final class ConnectionError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    Http2Connection(HttpHandler handler, Transport transport) {
+        this.handler = handler;
+        this.transport = transport;
+    }
+
+    /** True if the bytes could be the start of the client preface, as far as there are any. */
+    static boolean isPrefacePrefix(ByteBuffer data) {
+        int n = Math.min(data.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++) {
+            if (data.get(data.position() + i) != PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean startsWithPreface(ByteBuffer data) {
+        return data.remaining() >= PREFACE.length && isPrefacePrefix(data);
+    }
+
+    /**
+     * Serves the connection, starting with bytes already read from it, which the caller may reuse
+     * afterwards. Completes once the connection should be closed.
+     */
+    CompletionStage<Void> serve(ByteBuffer initial) {
+        synchronized (this) {
+            append(initial);
+            transport.idle(true);
+            writeSettings();
+            sendOutput();
+        }
+        readLoop();
+        return done;
+    }
+
+    // ---- reading ----
+
+    private void readLoop() {
+        synchronized (this) {
+            try {
+                processFrames();
+            } catch (ConnectionError e) {
+                LOGGER.warn("HTTP/2 connection error " + e.code + ": " + e.getMessage());
+                goAway(e.code);
+            } catch (RuntimeException e) {
+                LOGGER.error("HTTP/2 connection failed", e);
+                goAway(INTERNAL_ERROR);
+            }
+            flush();
+            if (closed) {
+                return;
+            }
+        }
+        transport.read().whenComplete((data, t) -> {
+            if (t != null) {
+                abort(t);
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (data == null) {
+                    // the peer closed, nothing can be sent any more
+                    finish();
+                    return;
+                }
+                append(data);
+            }
+            readLoop();
+        });
+    }
+
+    private void append(ByteBuffer data) {
+        if (in.remaining() < data.remaining()) {
+            inLease = POOL.grow(inLease, in.position() + data.remaining());
+            in = inLease.buffer();
+        }
+        in.put(data);
+    }
+
+    private void processFrames() throws ConnectionError {
+        if (closed) {
+            return;
+        }
+        in.flip();
+        try {
+            if (!prefaceReceived) {
+                if (!isPrefacePrefix(in)) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+                }
+                if (in.remaining() < PREFACE.length) {
+                    return;
+                }
+                in.position(in.position() + PREFACE.length);
+                prefaceReceived = true;
+            }
+            while (!closed && in.remaining() >= FRAME_HEADER_LENGTH) {
+                int p = in.position();
+                int length = (in.get(p) & 0xff) << 16 | (in.get(p + 1) & 0xff) << 8 | in.get(p + 2) & 0xff;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                }
+                if (in.remaining() < FRAME_HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = in.get(p + 3) & 0xff;
+                int flags = in.get(p + 4) & 0xff;
+                int streamId = in.getInt(p + 5) & 0x7fff_ffff;
+                ByteBuffer payload = in.slice(p + FRAME_HEADER_LENGTH, length);
+                in.position(p + FRAME_HEADER_LENGTH + length);
+                onFrame(type, flags, streamId, payload);
+            }
+        } finally {
+            // gone if a frame closed the connection
+            if (in != null) {
+                in.compact();
+            }
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (headerBlockStream != 0 && type != CONTINUATION) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION for stream " + headerBlockStream);
+        }
+        if (!settingsReceived && type != SETTINGS) {
+            throw new ConnectionError(PROTOCOL_ERROR, "The preface must be followed by SETTINGS");
+        }
+        switch (type) {
+            case DATA -> onData(flags, streamId, payload);
+            case HEADERS -> onHeaders(flags, streamId, payload);
+            case PRIORITY -> {
+                if (streamId == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (payload.remaining() != 5) {
+                    resetStream(streamId, FRAME_SIZE_ERROR);
+                }
+                // priorities are advisory and ignored
+            }
+            case RST_STREAM -> onResetStream(streamId, payload);
+            case SETTINGS -> onSettings(flags, streamId, payload);
+            case PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING -> onPing(flags, streamId, payload);
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+                }
+                goingAway = true;
+                if (streams.isEmpty()) {
+                    finish();
+                }
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+            case CONTINUATION -> onContinuation(flags, streamId, payload);
+            default -> {
+                // unknown frame types are ignored
+            }
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        if (streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        int length = payload.remaining();
+        stripPadding(flags, payload);
+
+        // the body is dropped, so all of it is credited back right away
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+        }
+        Stream s = streams.get(streamId);
+        if (s == null) {
+            // closed or reset by this side; the peer may not have noticed yet
+            return;
+        }
+        if (s.remoteClosed) {
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            s.remoteClosed = true;
+            closeIfDone(s);
+        } else if (length > 0) {
+            writeWindowUpdate(streamId, length);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        stripPadding(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Truncated priority");
+            }
+            payload.position(payload.position() + 5);
+        }
+        headerBlock.reset();
+        appendHeaderBlock(payload);
+        headerBlockStream = streamId;
+        headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (headerBlockStream == 0 || streamId != headerBlockStream) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION on stream " + streamId);
+        }
+        appendHeaderBlock(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) throws ConnectionError {
+        // compressed, a header block is smaller than the list it carries
+        if (headerBlock.size() + fragment.remaining() > MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+        }
+        byte[] bytes = new byte[fragment.remaining()];
+        fragment.get(bytes);
+        headerBlock.writeBytes(bytes);
+    }
+
+    private void onHeaderBlock() throws ConnectionError {
+        int streamId = headerBlockStream;
+        headerBlockStream = 0;
+
+        // decoded even when the stream is refused, the decoder's table has to stay in step with the peer's
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(ByteBuffer.wrap(headerBlock.toByteArray()));
+        } catch (IllegalArgumentException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Stream existing = streams.get(streamId);
+        if (existing != null || streamId <= lastStreamId) {
+            // trailers, ignored like the body; they must end the stream
+            if (existing == null) {
+                return;
+            }
+            if (!headerBlockEndsStream || existing.remoteClosed) {
+                resetStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+            existing.remoteClosed = true;
+            closeIfDone(existing);
+            return;
+        }
+
+        lastStreamId = streamId;
+        if (goingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        Request request;
+        try {
+            request = toRequest(fields);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Malformed HTTP/2 request on stream " + streamId + ": " + e.getMessage());
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        Stream s = new Stream(streamId);
+        s.remoteClosed = headerBlockEndsStream;
+        if (streams.isEmpty()) {
+            transport.idle(false);
+        }
+        streams.put(streamId, s);
+        boolean withBody = !"HEAD".equals(request.method());
+        AsyncTlsHttpServer.invoke(handler, request)
+                .thenAccept(response -> respond(s, response, withBody))
+                .exceptionally(t -> {
+                    LOGGER.error("Could not respond on HTTP/2 stream " + streamId, t);
+                    synchronized (this) {
+                        if (!s.reset && !closed) {
+                            resetStream(streamId, INTERNAL_ERROR);
+                            flush();
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    /** The request a header list carries; throws IllegalArgumentException if it is malformed. */
+    private static Request toRequest(List<String[]> fields) {
+        String method = null;
+        String scheme = null;
+        String target = null;
+        String authority = null;
+        Map<String, String> headers = new HashMap<>();
+        boolean regularSeen = false;
+        int listSize = 0;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            listSize += name.length() + value.length() + 32;
+            if (listSize > MAX_HEADER_LIST_SIZE) {
+                throw new IllegalArgumentException("Header list exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+            }
+            if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException("Upper-case header name " + name);
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    throw new IllegalArgumentException("Pseudo-header " + name + " after regular headers");
+                }
+                switch (name) {
+                    case ":method" -> method = single(name, method, value);
+                    case ":scheme" -> scheme = single(name, scheme, value);
+                    case ":path" -> target = single(name, target, value);
+                    case ":authority" -> authority = single(name, authority, value);
+                    default -> throw new IllegalArgumentException("Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (isConnectionSpecific(name) && !name.equals("content-length")
+                    || name.equals("te") && !value.equals("trailers")) {
+                throw new IllegalArgumentException("Connection-specific header " + name);
+            }
+            // split cookies are joined back the way HTTP/1.1 carries them
+            headers.merge(name, value, (a, b) -> a + (name.equals("cookie") ? "; " : ", ") + b);
+        }
+        if (method == null || scheme == null || target == null || target.isEmpty()) {
+            throw new IllegalArgumentException("Missing :method, :scheme or :path");
+        }
+        if (authority != null) {
+            headers.putIfAbsent("host", authority);
+        }
+        int queryStart = target.indexOf('?');
+        String path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        String query = queryStart >= 0 ? target.substring(queryStart + 1) : null;
+        return new Request(method, target, path, query, "HTTP/2.0", Map.copyOf(headers), Map.of());
+    }
+
+    private static String single(String name, String current, String value) {
+        if (current != null) {
+            throw new IllegalArgumentException("Repeated " + name);
+        }
+        return value;
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        return ResponseWriter.isFramingHeader(name) || name.equalsIgnoreCase("Keep-Alive")
+                || name.equalsIgnoreCase("Proxy-Connection") || name.equalsIgnoreCase("Upgrade");
+    }
+
+    private void onResetStream(int streamId, ByteBuffer payload) throws ConnectionError {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream " + streamId);
+        }
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + payload.remaining() + " bytes");
+        }
+        Stream s = streams.get(streamId);
+        if (s != null) {
+            removeStream(s);
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + payload.remaining() + " bytes");
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE of " + (value & 0xffffffffL));
+                    }
+                    // applies to the windows of open streams too
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Stream s : streams.values()) {
+                        s.sendWindow += delta;
+                        if (s.sendWindow > Integer.MAX_VALUE) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Window of stream " + s.id + " overflows");
+                        }
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    // frames stay at the default size, which fits a TLS record
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                    }
+                }
+                default -> {
+                    // MAX_CONCURRENT_STREAMS only limits pushes, MAX_HEADER_LIST_SIZE is advisory
+                }
+            }
+        }
+        settingsReceived = true;
+        writeFrameHeader(0, SETTINGS, FLAG_ACK, 0);
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (payload.remaining() != 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + payload.remaining() + " bytes");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrameHeader(8, PING, FLAG_ACK, 0).put(payload);
+        } else if (shutdownPending && payload.getLong() == SHUTDOWN_PING) {
+            // streams the client opened before it saw the first GOAWAY have arrived by now
+            shutdownPending = false;
+            writeFrameHeader(8, GOAWAY, 0, 0).putInt(lastStreamId).putInt(NO_ERROR);
+            goingAway = true;
+            if (streams.isEmpty()) {
+                finish();
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws ConnectionError {
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.remaining() + " bytes");
+        }
+        int increment = payload.getInt() & 0x7fff_ffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Connection window increment of 0");
+            }
+            connectionSendWindow += increment;
+            if (connectionSendWindow > Integer.MAX_VALUE) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflows");
+            }
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s == null) {
+            return;
+        }
+        if (increment == 0) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        s.sendWindow += increment;
+        if (s.sendWindow > Integer.MAX_VALUE) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private static void stripPadding(int flags, ByteBuffer payload) throws ConnectionError {
+        if ((flags & FLAG_PADDED) == 0) {
+            return;
+        }
+        if (!payload.hasRemaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Missing pad length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    // ---- responding ----
+
+    private synchronized void respond(Stream s, Response response, boolean withBody) {
+        if (s.reset || closed) {
+            return;
+        }
+        ByteBuffer body = response.body();
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        encoder.encode(":status", Integer.toString(response.status()), block);
+        for (Map.Entry<String, String> header : response.headers().entrySet()) {
+            if (!isConnectionSpecific(header.getKey())) {
+                encoder.encode(header.getKey().toLowerCase(Locale.ROOT), header.getValue(), block);
+            }
+        }
+        if (body != null) {
+            encoder.encode("content-length", Integer.toString(body.remaining()), block);
+        }
+
+        boolean headersOnly = !withBody || body != null && !body.hasRemaining();
+        writeHeaderBlock(s.id, block.toByteArray(), headersOnly);
+        if (headersOnly) {
+            s.endAfterPending = true;
+            closeIfDone(s);
+        } else if (body != null) {
+            enqueue(s, body.duplicate(), true);
+        } else {
+            streamBody(s, response.stream());
+        }
+        flush();
+    }
+
+    private void streamBody(Stream s, Response.BodyStream stream) {
+        stream.next().whenComplete((piece, t) -> {
+            CompletableFuture<Void> drained;
+            synchronized (this) {
+                if (s.reset || closed) {
+                    return;
+                }
+                if (t != null) {
+                    LOGGER.error("Response stream failed on HTTP/2 stream " + s.id, t);
+                    resetStream(s.id, INTERNAL_ERROR);
+                    flush();
+                    return;
+                }
+                enqueue(s, piece != null ? piece : ByteBuffer.allocate(0), piece == null);
+                drained = s.drained;
+                flush();
+            }
+            if (piece != null) {
+                drained.thenRun(() -> streamBody(s, stream));
+            }
+        });
+    }
+
+    private void enqueue(Stream s, ByteBuffer data, boolean last) {
+        s.pending.add(data);
+        s.endAfterPending = last;
+        if (s.drained.isDone()) {
+            s.drained = new CompletableFuture<>();
+        }
+        sending.add(s);
+    }
+
+    /**
+     * Frames pending response data, a frame per stream in turn, as far as the windows and the write
+     * queue allow, then hands everything built so far to the transport.
+     */
+    private void flush() {
+        if (flushing) {
+            flushAgain = true;
+            return;
+        }
+        flushing = true;
+        try {
+            do {
+                flushAgain = false;
+                boolean progress = true;
+                while (progress && !closed && queuedBytes < MAX_QUEUED_BYTES) {
+                    progress = false;
+                    for (Stream s : new ArrayList<>(sending)) {
+                        progress |= sendDataFrame(s);
+                    }
+                }
+                sendOutput();
+            } while (flushAgain);
+        } finally {
+            flushing = false;
+        }
+    }
+
+    private boolean sendDataFrame(Stream s) {
+        ByteBuffer data = s.pending.peek();
+        if (data == null) {
+            // reset or finished while this round was going
+            return false;
+        }
+        int n = (int) Math.min(Math.min(data.remaining(), DEFAULT_MAX_FRAME_SIZE),
+                Math.min(s.sendWindow, connectionSendWindow));
+        if (n <= 0 && data.hasRemaining()) {
+            return false;
+        }
+        boolean last = s.endAfterPending && s.pending.size() == 1 && n == data.remaining();
+        writeFrameHeader(n, DATA, last ? FLAG_END_STREAM : 0, s.id).put(data.slice(data.position(), n));
+        data.position(data.position() + n);
+        s.sendWindow -= n;
+        connectionSendWindow -= n;
+
+        if (!data.hasRemaining()) {
+            s.pending.poll();
+            if (s.pending.isEmpty()) {
+                sending.remove(s);
+                s.drained.complete(null);
+                closeIfDone(s);
+            }
+        }
+        return true;
+    }
+
+    // a stream is done once the response is out and the request body, still credited back, has ended
+    private void closeIfDone(Stream s) {
+        if (!s.endAfterPending || !s.pending.isEmpty() || s.reset || !s.remoteClosed) {
+            return;
+        }
+        removeStream(s);
+    }
+
+    private void resetStream(int streamId, int code) {
+        writeRstStream(streamId, code);
+        Stream s = streams.get(streamId);
+        if (s != null) {
+            removeStream(s);
+        }
+    }
+
+    private void removeStream(Stream s) {
+        s.reset = true;
+        s.pending.clear();
+        sending.remove(s);
+        boolean removed = streams.remove(s.id) != null;
+        if (goingAway && streams.isEmpty()) {
+            finish();
+        } else if (removed && streams.isEmpty() && !closed) {
+            transport.idle(true);
+        }
+    }
+
+    // ---- writing ----
+
+    private void writeSettings() {
+        writeFrameHeader(18, SETTINGS, 0, 0)
+                .putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS)
+                .putShort((short) SETTINGS_ENABLE_PUSH).putInt(0)
+                .putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+    }
+
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) {
+        int offset = 0;
+        do {
+            int n = Math.min(block.length - offset, DEFAULT_MAX_FRAME_SIZE);
+            boolean first = offset == 0;
+            boolean endHeaders = offset + n == block.length;
+            int flags = (endHeaders ? FLAG_END_HEADERS : 0) | (first && endStream ? FLAG_END_STREAM : 0);
+            writeFrameHeader(n, first ? HEADERS : CONTINUATION, flags, streamId).put(block, offset, n);
+            offset += n;
+        } while (offset < block.length);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        writeFrameHeader(4, WINDOW_UPDATE, 0, streamId).putInt(increment);
+    }
+
+    private void writeRstStream(int streamId, int code) {
+        writeFrameHeader(4, RST_STREAM, 0, streamId).putInt(code);
+    }
+
+    /** Sends GOAWAY and closes once it is written; streams still open are abandoned. */
+    private void goAway(int code) {
+        if (closed) {
+            return;
+        }
+        writeFrameHeader(8, GOAWAY, 0, 0).putInt(lastStreamId).putInt(code);
+        goingAway = true;
+        finish();
+    }
+
+    /**
+     * Takes no new streams and closes once the open ones are done, in two steps as RFC 9113 section 6.8
+     * suggests: a GOAWAY without error that names no last stream yet, so streams already on their way are
+     * still taken, and a PING. Its ACK comes back after them, and the final GOAWAY names the last stream
+     * that is answered.
+     */
+    synchronized void shutdown() {
+        if (closed || goingAway || shutdownPending) {
+            return;
+        }
+        writeFrameHeader(8, GOAWAY, 0, 0).putInt(Integer.MAX_VALUE).putInt(NO_ERROR);
+        writeFrameHeader(8, PING, 0, 0).putLong(SHUTDOWN_PING);
+        shutdownPending = true;
+        flush();
+    }
+
+    // writes the frame header into the output and returns the output for the payload
+    private ByteBuffer writeFrameHeader(int length, int type, int flags, int streamId) {
+        int size = FRAME_HEADER_LENGTH + length;
+        if (outLease != null && outLease.buffer().remaining() < size) {
+            sendOutput();
+        }
+        if (outLease == null) {
+            outLease = POOL.acquire(Math.max(size, OUTPUT_CHUNK));
+        }
+        return outLease.buffer()
+                .put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+                .put((byte) type).put((byte) flags).putInt(streamId);
+    }
+
+    private void sendOutput() {
+        BufferLease lease = outLease;
+        if (lease == null) {
+            return;
+        }
+        outLease = null;
+        ByteBuffer buffer = lease.buffer().flip();
+        int size = buffer.remaining();
+        queuedBytes += size;
+        // the tail moves first: a write can complete on this thread, and what that triggers queues behind it
+        CompletableFuture<Void> previous = writeTail;
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        writeTail = written;
+        previous.thenCompose(v -> transport.write(buffer)).whenComplete((v, t) -> {
+            lease.release();
+            if (t != null) {
+                written.completeExceptionally(t);
+                abort(t);
+                return;
+            }
+            written.complete(null);
+            synchronized (this) {
+                queuedBytes -= size;
+                if (!closed) {
+                    flush();
+                }
+            }
+        });
+    }
+
+    // ---- closing ----
+
+    // no more frames are read; done once what was written has gone out
+    private void finish() {
+        if (closed) {
+            return;
+        }
+        sendOutput();
+        closed = true;
+        releaseInput();
+        streams.clear();
+        sending.clear();
+        writeTail.whenComplete((v, t) -> {
+            if (t != null) done.completeExceptionally(t);
+            else done.complete(null);
+        });
+    }
+
+    private void abort(Throwable t) {
+        synchronized (this) {
+            closed = true;
+            releaseInput();
+            if (outLease != null) {
+                outLease.release();
+                outLease = null;
+            }
+            streams.clear();
+            sending.clear();
+        }
+        done.completeExceptionally(t);
+    }
+
+    private void releaseInput() {
+        if (inLease != null) {
+            inLease.release();
+            inLease = null;
+            in = null;
+        }
+    }
+}
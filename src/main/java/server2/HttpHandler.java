@@ -0,0 +1,17 @@
+package server2;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Application code behind an {@link AsyncTlsHttpServer}, registered through
+ * {@link ServerEvents.ServerStartEvent}. Usually a {@link Router}.
+ * <p>
+ * Called on the server's I/O threads, so it must not block: anything slow belongs in the returned
+ * stage. Servers in {@link ServerEvents.ConnectionMode#BLOCKING} mode call it on the connection's
+ * virtual thread instead, where blocking is fine. A failed stage is answered with 500.
+ */
+@FunctionalInterface
+public interface HttpHandler {
+
+    CompletionStage<Response> handle(Request request);
+}
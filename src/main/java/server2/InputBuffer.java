@@ -0,0 +1,99 @@
+package server2;
+
+import common.BufferLease;
+import common.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The input of one connection as raw bytes, read straight into a pooled buffer that grows as needed.
+ * <p>
+ * The search for the blank line ending a request head resumes where the previous one stopped, so a head
+ * arriving in many small reads is scanned once. Complete heads are handed out as views into the buffer
+ * and parsed from there; nothing is decoded to text before the parser picks out the fields. Bytes that
+ * follow a head, such as a pipelined request, stay for the next one.
+ */
+final class InputBuffer {
+
+    private static final BufferPool POOL = BufferPool.shared();
+
+    private final int maxHeadBytes;
+    private BufferLease lease;
+    // bytes [start, position) have been read but not taken yet
+    private ByteBuffer buffer;
+    private int start;
+    // how many of them have been searched for the end of the head
+    private int scanned;
+
+    InputBuffer(int initialCapacity, int maxHeadBytes) {
+        this.maxHeadBytes = maxHeadBytes;
+        this.lease = POOL.acquire(initialCapacity);
+        this.buffer = lease.buffer();
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == start;
+    }
+
+    /**
+     * The buffer to read into, positioned after the bytes read so far with at least minRemaining bytes
+     * free. Views handed out before are invalid from here on.
+     */
+    ByteBuffer writable(int minRemaining) {
+        if (start > 0) {
+            buffer.flip().position(start);
+            buffer.compact();
+            start = 0;
+        }
+        if (buffer.remaining() < minRemaining) {
+            lease = POOL.grow(lease, buffer.position() + minRemaining);
+            buffer = lease.buffer();
+        }
+        return buffer;
+    }
+
+    /** A view of the bytes not taken yet. */
+    ByteBuffer buffered() {
+        return buffer.duplicate().flip().position(start);
+    }
+
+    /** Takes all bytes not taken yet, as a view valid until the next {@link #writable}. */
+    ByteBuffer takeBuffered() {
+        ByteBuffer view = buffered();
+        start = buffer.position();
+        scanned = 0;
+        return view;
+    }
+
+    /**
+     * Takes the next complete request head, up to and including the blank line, as a view valid until
+     * the next {@link #writable}; null if it hasn't arrived completely yet.
+     * Throws IllegalArgumentException once the head exceeds the limit.
+     */
+    ByteBuffer takeHead() {
+        int end = buffer.position();
+        // the blank line may straddle the bytes scanned before and the new ones
+        for (int i = start + Math.max(0, scanned - 3); i + 3 < end; i++) {
+            if (buffer.get(i + 3) == '\n' && buffer.get(i + 2) == '\r'
+                    && buffer.get(i + 1) == '\n' && buffer.get(i) == '\r') {
+                int headEnd = i + 4;
+                if (headEnd - start > maxHeadBytes) {
+                    break;
+                }
+                ByteBuffer head = buffer.duplicate().limit(headEnd).position(start);
+                start = headEnd;
+                scanned = 0;
+                return head;
+            }
+        }
+        scanned = end - start;
+        if (scanned > maxHeadBytes) {
+            throw new IllegalArgumentException("Request head exceeds " + maxHeadBytes + " bytes");
+        }
+        return null;
+    }
+
+    void release() {
+        lease.release();
+    }
+}
@@ -0,0 +1,135 @@
+package server2;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A request head as handed to an {@link HttpHandler}. Header names are kept lower-cased;
+ * path parameters are filled in by the {@link Router} that matched the request.
+ */
+public record Request(
+        String method,
+        String target,
+        String path,
+        String query,
+        String version,
+        Map<String, String> headers,
+        Map<String, String> pathParams
+) {
+
+    /** The header's value, or null. Repeated headers are joined with ", ". */
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /** The value matched by the route's {name} or catch-all segment, or null. */
+    public String pathParam(String name) {
+        return pathParams.get(name);
+    }
+
+    /** Whether the client wants the connection kept open: the default for HTTP/1.1, opt-in before. */
+    public boolean isKeepAlive() {
+        String connection = header("Connection");
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                if (token.trim().equalsIgnoreCase("close")) {
+                    return false;
+                }
+                if (token.trim().equalsIgnoreCase("keep-alive")) {
+                    return true;
+                }
+            }
+        }
+        return "HTTP/1.1".equals(version);
+    }
+
+    /** True if a body follows the head. */
+    public boolean hasBody() {
+        String length = header("Content-Length");
+        return header("Transfer-Encoding") != null || length != null && !length.equals("0");
+    }
+
+    Request withPathParams(Map<String, String> params) {
+        return new Request(method, target, path, query, version, headers, Map.copyOf(params));
+    }
+
+    /**
+     * Parses a head, the bytes from the buffer's position to its limit, ending with or without the blank
+     * line. Fields are read straight from the bytes as ISO-8859-1; throws IllegalArgumentException if malformed.
+     */
+    static Request parse(ByteBuffer head) {
+        int end = head.limit();
+        int lineStart = head.position();
+        int lineEnd = lineEnd(head, lineStart, end);
+
+        int methodEnd = indexOf(head, ' ', lineStart, lineEnd);
+        int targetEnd = methodEnd < 0 ? -1 : indexOf(head, ' ', methodEnd + 1, lineEnd);
+        if (methodEnd <= lineStart || targetEnd <= methodEnd + 1 || indexOf(head, ' ', targetEnd + 1, lineEnd) >= 0
+                || !startsWith(head, targetEnd + 1, lineEnd, "HTTP/")) {
+            throw new IllegalArgumentException("Malformed request line: " + text(head, lineStart, lineEnd));
+        }
+        String method = text(head, lineStart, methodEnd).toUpperCase(Locale.ROOT);
+        String target = text(head, methodEnd + 1, targetEnd);
+        String version = text(head, targetEnd + 1, lineEnd);
+        int queryStart = target.indexOf('?');
+        String path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        String query = queryStart >= 0 ? target.substring(queryStart + 1) : null;
+
+        Map<String, String> headers = new HashMap<>();
+        for (lineStart = lineEnd + 2; lineStart < end; lineStart = lineEnd + 2) {
+            lineEnd = lineEnd(head, lineStart, end);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            int colon = indexOf(head, ':', lineStart, lineEnd);
+            if (colon <= lineStart) {
+                throw new IllegalArgumentException("Malformed header line: " + text(head, lineStart, lineEnd));
+            }
+            String name = text(head, lineStart, colon).trim().toLowerCase(Locale.ROOT);
+            String value = text(head, colon + 1, lineEnd).trim();
+            headers.merge(name, value, (a, b) -> a + ", " + b);
+        }
+        return new Request(method, target, path, query, version, Map.copyOf(headers), Map.of());
+    }
+
+    // the index of the CRLF ending the line that starts at from, or end
+    private static int lineEnd(ByteBuffer bytes, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (bytes.get(i) == '\r' && bytes.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int indexOf(ByteBuffer bytes, char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int from, int end, String prefix) {
+        if (end - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes.get(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String text(ByteBuffer bytes, int from, int end) {
+        char[] chars = new char[end - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (bytes.get(from + i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
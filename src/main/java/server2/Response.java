@@ -0,0 +1,106 @@
+package server2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A response returned by an {@link HttpHandler}: either a complete body, sent with Content-Length,
+ * or a {@link BodyStream}, sent chunked as the stream produces it.
+ */
+public final class Response {
+
+    /** Produces a streamed body piece by piece; the next piece is only asked for once the previous one is written. */
+    @FunctionalInterface
+    public interface BodyStream {
+
+        /** The next piece of the body, or null once the body is complete. */
+        CompletionStage<ByteBuffer> next();
+    }
+
+    private final int status;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final ByteBuffer body;
+    private final BodyStream stream;
+
+    private Response(int status, ByteBuffer body, BodyStream stream) {
+        if (status < 100 || status > 999) {
+            throw new IllegalArgumentException("Invalid status: " + status);
+        }
+        this.status = status;
+        this.body = body;
+        this.stream = stream;
+    }
+
+    public static Response of(int status, String contentType, byte[] body) {
+        return new Response(status, ByteBuffer.wrap(body), null).header("Content-Type", contentType);
+    }
+
+    public static Response text(int status, String text) {
+        return of(status, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** A response without a body. */
+    public static Response status(int status) {
+        return new Response(status, ByteBuffer.allocate(0), null);
+    }
+
+    public static Response stream(int status, String contentType, BodyStream stream) {
+        return new Response(status, null, stream).header("Content-Type", contentType);
+    }
+
+    public CompletionStage<Response> completed() {
+        return CompletableFuture.completedFuture(this);
+    }
+
+    /** Sets a header. Content-Length, Transfer-Encoding and Connection are set by the server. */
+    public Response header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    Map<String, String> headers() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /** The complete body, null if streamed. */
+    ByteBuffer body() {
+        return body;
+    }
+
+    BodyStream stream() {
+        return stream;
+    }
+
+    static String reasonPhrase(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 408 -> "Request Timeout";
+            case 413 -> "Content Too Large";
+            case 429 -> "Too Many Requests";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 503 -> "Service Unavailable";
+            default -> "";
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package server2;
+
+import common.BufferLease;
+import common.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Serializes a {@link Response} into pooled buffers for a connection to write: a complete body goes out
+ * together with the head in one buffer, a streamed one in chunked encoding, one buffer per piece.
+ * Whoever writes a buffer releases its lease afterwards.
+ */
+final class ResponseWriter {
+
+    private static final BufferPool POOL = BufferPool.shared();
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private ResponseWriter() {
+    }
+
+    /**
+     * The head, followed by the body if it is complete. Without a body, as for HEAD requests, only the head.
+     * A streamed body follows in {@link #chunk}s and the {@link #lastChunk}.
+     */
+    static BufferLease head(Response response, boolean withBody, boolean keepAlive) {
+        ByteBuffer body = response.body();
+        boolean chunked = body == null;
+        byte[] head = encodeHead(response, chunked ? -1 : body.remaining(), keepAlive);
+
+        int bodyLength = withBody && !chunked ? body.remaining() : 0;
+        BufferLease lease = POOL.acquire(head.length + bodyLength);
+        ByteBuffer buffer = lease.buffer().put(head);
+        if (bodyLength > 0) {
+            buffer.put(body.duplicate());
+        }
+        buffer.flip();
+        return lease;
+    }
+
+    /** One piece of a streamed body, which must not be empty: an empty chunk would end the body. */
+    static BufferLease chunk(ByteBuffer piece) {
+        byte[] size = (Integer.toHexString(piece.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        BufferLease lease = POOL.acquire(size.length + piece.remaining() + CRLF.length);
+        lease.buffer().put(size).put(piece).put(CRLF).flip();
+        return lease;
+    }
+
+    static BufferLease lastChunk() {
+        BufferLease lease = POOL.acquire(LAST_CHUNK.length);
+        lease.buffer().put(LAST_CHUNK).flip();
+        return lease;
+    }
+
+    private static byte[] encodeHead(Response response, long contentLength, boolean keepAlive) {
+        StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(response.status()).append(' ')
+                .append(Response.reasonPhrase(response.status())).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers().entrySet()) {
+            if (isFramingHeader(header.getKey())) {
+                continue;
+            }
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static boolean isFramingHeader(String name) {
+        return name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")
+                || name.equalsIgnoreCase("Connection");
+    }
+}
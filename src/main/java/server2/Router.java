@@ -0,0 +1,288 @@
+package server2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Dispatches requests to handlers by method and path pattern.
+ * <p>
+ * Patterns are static text with {@code {name}} segments, which match up to the next '/', and an
+ * optional trailing {@code *} or {@code *name}, which matches the rest of the path, e.g.
+ * {@code /users/{id}/files/*path}. The builder compiles all patterns into one radix tree of shared
+ * prefixes, so a lookup walks the path once and costs the same however many routes there are.
+ * Static text wins over a parameter, a parameter over a catch-all.
+ * <p>
+ * Paths without a route are answered with 404, paths whose route lacks the method with 405.
+ */
+public final class Router implements HttpHandler {
+
+    private final Node root;
+    private final HttpHandler notFound;
+
+    private Router(Node root, HttpHandler notFound) {
+        this.root = root;
+        this.notFound = notFound;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public CompletionStage<Response> handle(Request request) {
+        List<String> params = new ArrayList<>(4);
+        Node node = root.find(request.path(), 0, params);
+        if (node == null) {
+            return notFound.handle(request);
+        }
+
+        HttpHandler handler = node.handlers.get(request.method());
+        if (handler == null && "HEAD".equals(request.method())) {
+            handler = node.handlers.get("GET");
+        }
+        if (handler == null) {
+            return Response.text(405, "Method not allowed\n")
+                    .header("Allow", String.join(", ", node.handlers.keySet()))
+                    .completed();
+        }
+
+        if (params.isEmpty()) {
+            return handler.handle(request);
+        }
+        Map<String, String> pathParams = new HashMap<>();
+        for (int i = 0; i < params.size(); i += 2) {
+            pathParams.put(params.get(i), params.get(i + 1));
+        }
+        return handler.handle(request.withPathParams(pathParams));
+    }
+
+    public static final class Builder {
+
+        private final Node root = new Node("");
+        private HttpHandler notFound = request -> Response.text(404, "Not found\n").completed();
+
+        private Builder() {
+        }
+
+        public Builder get(String pattern, HttpHandler handler) {
+            return route("GET", pattern, handler);
+        }
+
+        public Builder post(String pattern, HttpHandler handler) {
+            return route("POST", pattern, handler);
+        }
+
+        public Builder put(String pattern, HttpHandler handler) {
+            return route("PUT", pattern, handler);
+        }
+
+        public Builder delete(String pattern, HttpHandler handler) {
+            return route("DELETE", pattern, handler);
+        }
+
+        /** Adds a route; throws IllegalArgumentException if the pattern is invalid or already taken for the method. */
+        public Builder route(String method, String pattern, HttpHandler handler) {
+            if (pattern == null || !pattern.startsWith("/")) {
+                throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+            }
+            Node node = root.insert(pattern, 0);
+            String key = method.toUpperCase(Locale.ROOT);
+            if (node.handlers.putIfAbsent(key, handler) != null) {
+                throw new IllegalArgumentException("Duplicate route: " + key + " " + pattern);
+            }
+            return this;
+        }
+
+        /** Answers requests no route matches; 404 by default. */
+        public Builder notFound(HttpHandler handler) {
+            this.notFound = handler;
+            return this;
+        }
+
+        public Router build() {
+            return new Router(root, notFound);
+        }
+    }
+
+    /**
+     * A static node matches its prefix; a parameter node a segment, a catch-all node the rest of the
+     * path. Static children are indexed by their first character.
+     */
+    private static final class Node {
+
+        private String prefix;
+        private final String paramName;
+
+        private char[] indices = new char[0];
+        private Node[] children = new Node[0];
+        private Node paramChild;
+        private Node catchAllChild;
+        private Map<String, HttpHandler> handlers = new LinkedHashMap<>();
+
+        private Node(String prefix) {
+            this(prefix, null);
+        }
+
+        private Node(String prefix, String paramName) {
+            this.prefix = prefix;
+            this.paramName = paramName;
+        }
+
+        // the node that pattern[from..] leads to below this one, created as needed
+        Node insert(String pattern, int from) {
+            if (from == pattern.length()) {
+                return this;
+            }
+            char c = pattern.charAt(from);
+            if (c == '{') {
+                int close = pattern.indexOf('}', from);
+                if (close < 0 || close == from + 1) {
+                    throw new IllegalArgumentException("Invalid parameter in pattern: " + pattern);
+                }
+                String name = pattern.substring(from + 1, close);
+                if (close + 1 < pattern.length() && pattern.charAt(close + 1) != '/') {
+                    throw new IllegalArgumentException("A parameter must span a whole segment: " + pattern);
+                }
+                if (paramChild == null) {
+                    paramChild = new Node("", name);
+                } else if (!paramChild.paramName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting parameter names {" + paramChild.paramName
+                            + "} and {" + name + "} in pattern: " + pattern);
+                }
+                return paramChild.insert(pattern, close + 1);
+            }
+            if (c == '*') {
+                String name = pattern.substring(from + 1);
+                if (name.indexOf('/') >= 0 || name.indexOf('{') >= 0) {
+                    throw new IllegalArgumentException("A catch-all must end the pattern: " + pattern);
+                }
+                String paramName = name.isEmpty() ? "*" : name;
+                if (catchAllChild == null) {
+                    catchAllChild = new Node("", paramName);
+                } else if (!catchAllChild.paramName.equals(paramName)) {
+                    throw new IllegalArgumentException("Conflicting catch-all names " + catchAllChild.paramName
+                            + " and " + paramName + " in pattern: " + pattern);
+                }
+                return catchAllChild;
+            }
+
+            int end = from;
+            while (end < pattern.length() && pattern.charAt(end) != '{' && pattern.charAt(end) != '*') {
+                end++;
+            }
+            String text = pattern.substring(from, end);
+            int index = indexOf(text.charAt(0));
+            if (index < 0) {
+                Node child = new Node(text);
+                addChild(child);
+                return child.insert(pattern, end);
+            }
+
+            Node child = children[index];
+            int common = commonPrefixLength(child.prefix, text);
+            if (common < child.prefix.length()) {
+                child.split(common);
+            }
+            return child.insert(pattern, from + common);
+        }
+
+        // keeps the first length characters in this node and moves the rest, with everything below, into a child
+        private void split(int length) {
+            Node rest = new Node(prefix.substring(length));
+            rest.indices = indices;
+            rest.children = children;
+            rest.paramChild = paramChild;
+            rest.catchAllChild = catchAllChild;
+            rest.handlers = handlers;
+
+            prefix = prefix.substring(0, length);
+            indices = new char[0];
+            children = new Node[0];
+            paramChild = null;
+            catchAllChild = null;
+            handlers = new LinkedHashMap<>();
+            addChild(rest);
+        }
+
+        private void addChild(Node child) {
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = child.prefix.charAt(0);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+        }
+
+        private int indexOf(char c) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * The node with handlers that path[from..] leads to below this one, or null.
+         * Collects parameter names and values, in pairs, into params.
+         */
+        Node find(String path, int from, List<String> params) {
+            if (from == path.length()) {
+                if (!handlers.isEmpty()) {
+                    return this;
+                }
+                // a catch-all also matches an empty rest
+                return catchAllChild != null ? matchCatchAll(path, from, params) : null;
+            }
+
+            int index = indexOf(path.charAt(from));
+            if (index >= 0) {
+                Node child = children[index];
+                if (path.startsWith(child.prefix, from)) {
+                    Node found = child.find(path, from + child.prefix.length(), params);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+
+            if (paramChild != null) {
+                int end = path.indexOf('/', from);
+                if (end < 0) {
+                    end = path.length();
+                }
+                if (end > from) {
+                    int mark = params.size();
+                    params.add(paramChild.paramName);
+                    params.add(path.substring(from, end));
+                    Node found = paramChild.find(path, end, params);
+                    if (found != null) {
+                        return found;
+                    }
+                    params.subList(mark, params.size()).clear();
+                }
+            }
+
+            return catchAllChild != null ? matchCatchAll(path, from, params) : null;
+        }
+
+        private Node matchCatchAll(String path, int from, List<String> params) {
+            params.add(catchAllChild.paramName);
+            params.add(path.substring(from));
+            return catchAllChild;
+        }
+
+        private static int commonPrefixLength(String a, String b) {
+            int max = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < max && a.charAt(i) == b.charAt(i)) {
+                i++;
+            }
+            return i;
+        }
+    }
+}
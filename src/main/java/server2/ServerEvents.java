@@ -1,32 +1,210 @@
 package server2;
 
 import actions.Event;
+import common.AdmissionControl;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
 
 public final class ServerEvents {
     private ServerEvents() {}
 
+    /**
+     * @param acceptors number of listening sockets bound to the port with SO_REUSEPORT, each with its
+     *                  own accept loop; the kernel spreads new connections across them
+     * @param handler   answers the requests, usually a {@link server2.Router}; null for a built-in
+     *                  greeting that echoes the request line
+     * @param mode      how connections are served, {@link ConnectionMode#ASYNC} if null
+     * @param channelGroup the I/O threads of an async server; null for the group shared by all servers
+     *                  that don't ask for one. Blocking servers have none.
+     * @param admissionLimits caps on connections and on the accept rate, for the server as a whole;
+     *                  {@link AdmissionControl.Limits#defaults()} if null
+     */
     public record ServerStartEvent(
             String id,
             String host,
             int port,
             boolean tlsEnabled,
-            TlsConfig tls
-    ) implements Event {}
+            TlsConfig tls,
+            int acceptors,
+            HttpHandler handler,
+            ConnectionMode mode,
+            ChannelGroupConfig channelGroup,
+            AdmissionControl.Limits admissionLimits
+    ) implements Event {
+        public ServerStartEvent {
+            if (acceptors < 1) {
+                throw new IllegalArgumentException("acceptors must be >= 1");
+            }
+            if (mode == null) {
+                mode = ConnectionMode.ASYNC;
+            }
+            if (mode == ConnectionMode.BLOCKING && channelGroup != null) {
+                throw new IllegalArgumentException("A blocking server has no channel group");
+            }
+            if (admissionLimits == null) {
+                admissionLimits = AdmissionControl.Limits.defaults();
+            }
+        }
+
+        public ServerStartEvent(String id, String host, int port, boolean tlsEnabled, TlsConfig tls, int acceptors,
+                                HttpHandler handler, ConnectionMode mode, ChannelGroupConfig channelGroup) {
+            this(id, host, port, tlsEnabled, tls, acceptors, handler, mode, channelGroup, null);
+        }
+
+        public ServerStartEvent(String id, String host, int port, boolean tlsEnabled, TlsConfig tls, int acceptors,
+                                HttpHandler handler, ConnectionMode mode) {
+            this(id, host, port, tlsEnabled, tls, acceptors, handler, mode, null);
+        }
+
+        public ServerStartEvent(String id, String host, int port, boolean tlsEnabled, TlsConfig tls, int acceptors,
+                                HttpHandler handler) {
+            this(id, host, port, tlsEnabled, tls, acceptors, handler, ConnectionMode.ASYNC, null);
+        }
+
+        public ServerStartEvent(String id, String host, int port, boolean tlsEnabled, TlsConfig tls) {
+            this(id, host, port, tlsEnabled, tls, 1, null, ConnectionMode.ASYNC, null);
+        }
+
+        public ServerStartEvent(String id, String host, int port, boolean tlsEnabled, TlsConfig tls, int acceptors) {
+            this(id, host, port, tlsEnabled, tls, acceptors, null, ConnectionMode.ASYNC, null);
+        }
+    }
+
+    /** How a server's connections are served. */
+    public enum ConnectionMode {
+        /** Asynchronous channels on the server's I/O threads; the handler must not block. */
+        ASYNC,
+        /**
+         * One virtual thread per connection, running blocking reads and writes. The handler may block,
+         * for instance on a JDBC call, which parks only that connection's thread.
+         */
+        BLOCKING
+    }
+
+    /**
+     * @param name    servers naming the same group share it, and it is shut down once the last of them
+     *                stops; null for a group of the server's own
+     * @param threads number of I/O threads, 0 for one per available processor
+     * @param cpus    CPUs the threads are pinned to where the OS allows it, a hint; null or empty for none
+     */
+    public record ChannelGroupConfig(String name, int threads, int[] cpus) {
+        public ChannelGroupConfig {
+            if (threads < 0) {
+                throw new IllegalArgumentException("threads must be >= 0");
+            }
+            if (threads == 0) {
+                threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            }
+            cpus = cpus == null ? new int[0] : cpus.clone();
+            for (int cpu : cpus) {
+                if (cpu < 0) {
+                    throw new IllegalArgumentException("Invalid CPU: " + cpu);
+                }
+            }
+        }
+
+        /** A group of the server's own. */
+        public static ChannelGroupConfig dedicated(int threads, int... cpus) {
+            return new ChannelGroupConfig(null, threads, cpus);
+        }
 
-    public record ServerStopEvent(String id) implements Event {}
+        /** A group shared by every server that names it; all of them have to ask for the same threads. */
+        public static ChannelGroupConfig shared(String name, int threads, int... cpus) {
+            return new ChannelGroupConfig(Objects.requireNonNull(name, "name"), threads, cpus);
+        }
+    }
+
+    /**
+     * Stops accepting, lets the requests in flight finish and closes idle connections, TLS ones with
+     * close_notify. Connections still open when the drain timeout passes are closed without further ado.
+     *
+     * @param drainTimeout how long requests in flight get, a server default if null; zero closes right away
+     */
+    public record ServerStopEvent(String id, Duration drainTimeout) implements Event {
+        public ServerStopEvent {
+            if (drainTimeout != null && drainTimeout.isNegative()) {
+                throw new IllegalArgumentException("drainTimeout must not be negative");
+            }
+        }
+
+        public ServerStopEvent(String id) {
+            this(id, null);
+        }
+    }
+
+    /**
+     * Replaces a running server with a new instance without closing its listening sockets: the new one
+     * takes them over together with the channel group, so connections keep being accepted throughout,
+     * and the old one drains as on {@link ServerStopEvent}. The new server listens where the old one did,
+     * so host, port and acceptors of {@code next} aren't used, and its mode, channel group and admission
+     * limits have to be the old one's: the connections of both count against the same limits. Its handler
+     * and TLS config, a renewed certificate for instance, apply from the first connection it accepts.
+     *
+     * @param id           the running server
+     * @param next         the new instance, which may keep the id
+     * @param drainTimeout how long the old server's requests in flight get, a server default if null
+     */
+    public record ServerRestartEvent(String id, ServerStartEvent next, Duration drainTimeout) implements Event {
+        public ServerRestartEvent {
+            Objects.requireNonNull(id, "id");
+            Objects.requireNonNull(next, "next");
+            if (drainTimeout != null && drainTimeout.isNegative()) {
+                throw new IllegalArgumentException("drainTimeout must not be negative");
+            }
+        }
+
+        public ServerRestartEvent(String id, ServerStartEvent next) {
+            this(id, next, null);
+        }
+    }
 
     public record ServerStartedEvent(String id, String host, int port, boolean tlsEnabled) implements Event {}
     public record ServerStoppedEvent(String id) implements Event {}
     public record ServerFailedEvent(String id, Throwable error) implements Event {}
 
+    /**
+     * @param sessionCacheSize         sessions kept for resumption by session id, 0 for no limit
+     * @param sessionTimeoutSeconds    how long a session, cached or in a ticket, can be resumed
+     * @param sessionTickets           whether resumption state is handed to clients in encrypted tickets
+     *                                 instead of being cached on the server
+     * @param ticketKeyRotationSeconds how long a ticket encryption key is used before the next one replaces it
+     * @param applicationProtocols     offered through ALPN in order of preference, "h2" and "http/1.1"
+     */
     public record TlsConfig(
             Path pkcs12Path,
             char[] pkcs12Password,
             boolean needClientAuth,
-            String[] enabledProtocols
+            String[] enabledProtocols,
+            int sessionCacheSize,
+            int sessionTimeoutSeconds,
+            boolean sessionTickets,
+            int ticketKeyRotationSeconds,
+            String[] applicationProtocols
     ) {
+        public TlsConfig {
+            if (sessionCacheSize < 0 || sessionTimeoutSeconds < 0) {
+                throw new IllegalArgumentException("session cache size and timeout must be >= 0");
+            }
+            // the JDK rejects rotation periods above a week
+            if (ticketKeyRotationSeconds < 1 || ticketKeyRotationSeconds > 604_800) {
+                throw new IllegalArgumentException("ticketKeyRotationSeconds must be between 1 and 604800");
+            }
+            if (applicationProtocols == null || applicationProtocols.length == 0) {
+                applicationProtocols = new String[]{"h2", "http/1.1"};
+            }
+            for (String protocol : applicationProtocols) {
+                if (!"h2".equals(protocol) && !"http/1.1".equals(protocol)) {
+                    throw new IllegalArgumentException("Unsupported application protocol: " + protocol);
+                }
+            }
+        }
+
+        public TlsConfig(Path pkcs12Path, char[] pkcs12Password, boolean needClientAuth, String[] enabledProtocols) {
+            this(pkcs12Path, pkcs12Password, needClientAuth, enabledProtocols, 10_000, 3_600, true, 3_600, null);
+        }
+
         public static TlsConfig defaults(Path p12, char[] pwd) {
             return new TlsConfig(p12, pwd, false, new String[]{"TLSv1.3", "TLSv1.2"});
         }
@@ -1,7 +1,10 @@
 package server2;
 
+import logger.Logger;
+
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -10,8 +13,48 @@ import java.util.Objects;
 
 public final class SslContexts {
 
+    private static final Logger LOGGER = new Logger(SslContexts.class.getName());
+
+    // read once by the JDK when TLS is first used, so they hold for the whole JVM
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    private static final String TICKET_KEY_TIMEOUT_PROPERTY = "jdk.tls.server.statelessKeyTimeout";
+
     private SslContexts() {}
 
+    /**
+     * A server context with the config's key material and session resumption settings. Resumed handshakes
+     * skip the certificate and key exchange, either from the server's session cache or, with tickets, from
+     * the state the client presents, encrypted under a key the JDK rotates after the configured period.
+     * <p>
+     * Ticket settings are JVM-wide: the first server to start decides unless they are given as -D options.
+     */
+    public static SSLContext forServer(ServerEvents.TlsConfig tls) {
+        Objects.requireNonNull(tls, "tls");
+        configureTickets(tls.sessionTickets(), tls.ticketKeyRotationSeconds());
+
+        SSLContext ctx = fromPkcs12(
+                Objects.requireNonNull(tls.pkcs12Path(), "pkcs12Path"),
+                Objects.requireNonNull(tls.pkcs12Password(), "pkcs12Password"));
+        SSLSessionContext sessions = ctx.getServerSessionContext();
+        sessions.setSessionCacheSize(tls.sessionCacheSize());
+        sessions.setSessionTimeout(tls.sessionTimeoutSeconds());
+        return ctx;
+    }
+
+    private static synchronized void configureTickets(boolean enabled, int keyRotationSeconds) {
+        setIfAbsent(TICKETS_PROPERTY, Boolean.toString(enabled));
+        setIfAbsent(TICKET_KEY_TIMEOUT_PROPERTY, Integer.toString(keyRotationSeconds));
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        String current = System.getProperty(property);
+        if (current == null) {
+            System.setProperty(property, value);
+        } else if (!current.equals(value)) {
+            LOGGER.warn(property + " is already " + current + ", ignoring " + value);
+        }
+    }
+
     public static SSLContext fromPkcs12(Path p12Path, char[] password) {
         Objects.requireNonNull(p12Path, "p12Path");
         Objects.requireNonNull(password, "password");
@@ -0,0 +1,17 @@
+package server2;
+
+/**
+ * Handshakes a TLS server has completed since it started. Resumed ones reuse an earlier session, from the
+ * server's cache or a ticket, and skip the certificate exchange and most of the key agreement.
+ *
+ * @param taskCpuNanos CPU time spent in the engine's delegated tasks on the handshake pool, kept apart
+ *                     from the I/O threads
+ */
+public record TlsSessionStats(long fullHandshakes, long resumedHandshakes, long taskCpuNanos) {
+
+    /** The share of handshakes that were resumed, 0 before the first one. */
+    public double resumptionRate() {
+        long total = fullHandshakes + resumedHandshakes;
+        return total == 0 ? 0 : (double) resumedHandshakes / total;
+    }
+}